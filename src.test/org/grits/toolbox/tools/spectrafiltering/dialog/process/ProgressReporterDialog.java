@@ -28,6 +28,8 @@ import org.eclipse.swt.widgets.Text;
 public class ProgressReporterDialog extends Dialog implements IProgressReporter {
 	// log4J Logger
 	private static final Logger logger = Logger.getLogger(ProgressReporterDialog.class);
+	/** Interval in milliseconds to poll the progress and redraw the progress bar */
+	private static final int FRAME_INTERVAL = 100;
 	/** Instance of the thread doing the work while progress dialog is shown */
 	protected ProgressDialogThread m_worker = null;
 	// Masaaki added 7/31/2019
@@ -48,8 +50,10 @@ public class ProgressReporterDialog extends Dialog implements IProgressReporter
 	protected Display m_display = null;
 
 	private int m_iMax = 0;
-	private double m_dCount = 0.0;
-	private double m_dIncrement = 0.0;
+	/** Progress counted by the worker without blocking, polled at each frame */
+	private ProgressCounter m_counter = new ProgressCounter();
+	private long m_lDrawnSteps = -1;
+	private volatile boolean m_bFinished = false;
 
 	protected boolean isCanceled = false;
 
@@ -93,16 +97,36 @@ public class ProgressReporterDialog extends Dialog implements IProgressReporter
 
 	@Override
 	public void updateProgresBar(String msg) {
-		// need final variable
-		final String t_message = new String(msg);
-		this.m_display.syncExec(new Runnable() {
-			@Override
-			public void run() {
-				m_progressBarMain.setText(t_message);
-				m_progressBarMain.setSelection((int) (m_dCount + m_dIncrement));
-				m_dCount = m_dCount + m_dIncrement;
-			}
-		});
+		// only counts the step, the progress bar is redrawn at the next frame
+		this.m_counter.step(msg);
+	}
+
+	@Override
+	public void updateProgress(String a_strLabel, int a_iItem) {
+		this.m_counter.step(a_strLabel, a_iItem);
+	}
+
+	/**
+	 * Redraws the progress bar with the current progress, and schedules itself
+	 * for the next frame while the dialog is open.
+	 */
+	private void drawProgress() {
+		if ( m_shell.isDisposed() || m_bFinished )
+			return;
+		this.drawProgressBar();
+		m_display.timerExec(FRAME_INTERVAL, this::drawProgress);
+	}
+
+	private void drawProgressBar() {
+		this.m_counter.sample(System.nanoTime());
+		long lSteps = this.m_counter.getSteps();
+		if ( lSteps == 0 && this.m_lDrawnSteps == 0 )
+			return;
+		this.m_lDrawnSteps = lSteps;
+		int iMax = this.m_counter.getMax();
+		int iSelection = ( iMax < 0 ) ? (int) lSteps : (int) Math.min(100, lSteps * 100 / Math.max(1, iMax));
+		m_progressBarMain.setText(this.m_counter.getProgressText());
+		m_progressBarMain.setSelection(iSelection);
 	}
 
 	@Override
@@ -113,6 +137,9 @@ public class ProgressReporterDialog extends Dialog implements IProgressReporter
 			this.m_display.syncExec(new Runnable() {
 				@Override
 				public void run() {
+					// draws the last progress and stops polling
+					drawProgressBar();
+					m_bFinished = true;
 					m_progressBarMain.setSelection(m_iMax);
 					m_button.setText("Finish");
 					m_button.addSelectionListener(new SelectionAdapter() {
@@ -177,22 +204,21 @@ public class ProgressReporterDialog extends Dialog implements IProgressReporter
 
 	@Override
 	public void setMax(int max) {
-		this.m_iMax = max;
-		if ( this.m_iMax < 0 ) {
-			this.m_dIncrement = 1;
-			this.m_iMax = -1;
-		} else {
-			this.m_dIncrement = 100.00 / this.m_iMax;
-			this.m_iMax = 100;
-		}
+		this.setMax(max, 1);
+	}
+
+	@Override
+	public void setMax(int max, int a_nItemsPerStep) {
+		this.m_iMax = ( max < 0 ) ? -1 : 100;
 		// start from beginning
+		this.m_counter.reset(max, a_nItemsPerStep);
 		this.m_display.syncExec(new Runnable() {
 			@Override
 			public void run() {
 				m_progressBarMain.setMaximum(m_iMax);
 				m_progressBarMain.setSelection(0);
 				m_progressBarMain.setText("");
-				m_dCount = 0;
+				m_lDrawnSteps = 0;
 			}
 		});
 	}
@@ -256,6 +282,7 @@ public class ProgressReporterDialog extends Dialog implements IProgressReporter
 
 		m_shell.open();
 		m_shell.layout();
+		m_display.timerExec(FRAME_INTERVAL, this::drawProgress);
 
 		this.m_worker.setDialog(this);
 		this.m_worker.start();
@@ -0,0 +1,21 @@
+package org.grits.toolbox.tools.spectrafiltering.dialog.process;
+
+/**
+ * Cancellation flag shared by a task and its subtasks. Reading the flag is a
+ * single volatile read, so the workers can check it at each chunk of their
+ * work without locking.
+ */
+public class CancelToken
+{
+    private volatile boolean m_bCanceled = false;
+
+    public void cancel()
+    {
+        this.m_bCanceled = true;
+    }
+
+    public boolean isCanceled()
+    {
+        return this.m_bCanceled;
+    }
+}
@@ -9,10 +9,33 @@ public interface IProgressReporter
 
     public void setMax(int a_i);
 
+    /**
+     * Sets the number of the steps with the number of the items (e.g. scans)
+     * processed in a step, which is used to show the throughput.
+     * @param a_i number of the steps, or a negative value if unknown
+     * @param a_nItemsPerStep number of the items processed in a step
+     */
+    public default void setMax(int a_i, int a_nItemsPerStep)
+    {
+        this.setMax(a_i);
+    }
+
     public void setProcessMessageLabel(String a_string);
 
     public void setDescriptionText(String a_string);
 
     public void updateProgresBar(String a_string);
 
+    /**
+     * Counts a step of the progress without building the text in the worker.
+     * Reporters polling a {@link ProgressCounter} can override this not to
+     * block the workers.
+     * @param a_strLabel label of the current item, e.g. "Reading Scan #"
+     * @param a_iItem number of the current item appended to the label
+     */
+    public default void updateProgress(String a_strLabel, int a_iItem)
+    {
+        this.updateProgresBar(a_strLabel + a_iItem);
+    }
+
 }
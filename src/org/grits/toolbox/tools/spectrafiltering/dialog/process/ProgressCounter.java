@@ -0,0 +1,162 @@
+package org.grits.toolbox.tools.spectrafiltering.dialog.process;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free progress state shared by the worker threads and a reporter. The
+ * workers only bump the counter and set the current item, which never blocks,
+ * and the reporter polls the state at its own frame rate to show the current
+ * item with the throughput and the estimated remaining time.
+ * <p>
+ * The label and the item number of the current item are set separately, so a
+ * poll may see the label of one step with the number of the next step. This
+ * only affects a single frame of the text.
+ */
+public class ProgressCounter
+{
+    /** Weight of the latest frame in the smoothed rate */
+    private static final double RATE_SMOOTHING = 0.2;
+
+    private final AtomicLong m_lSteps = new AtomicLong();
+    private volatile String m_strLabel = "";
+    /** Item number appended to the label, or -1 if the label is the whole text */
+    private volatile long m_lItem = -1;
+    private volatile int m_iMax = -1;
+    private volatile int m_nItemsPerStep = 1;
+    /** Incremented at each reset, so that the polling thread restarts sampling */
+    private volatile int m_iGeneration = 0;
+
+    // Sampling state, only used by the polling thread
+    private int m_iSampledGeneration = 0;
+    private long m_lSampledSteps = 0;
+    private long m_lSampledNanos = 0;
+    private double m_dStepsPerSecond = Double.NaN;
+
+    /**
+     * Starts counting from zero.
+     * @param a_iMax number of the steps, or a negative value if unknown
+     * @param a_nItemsPerStep number of the items (e.g. scans) processed in a step
+     */
+    public void reset(int a_iMax, int a_nItemsPerStep)
+    {
+        this.m_iMax = ( a_iMax < 0 ) ? -1 : a_iMax;
+        this.m_nItemsPerStep = Math.max(1, a_nItemsPerStep);
+        this.m_strLabel = "";
+        this.m_lItem = -1;
+        this.m_lSteps.set(0);
+        this.m_iGeneration++;
+    }
+
+    /**
+     * Counts a step.
+     * @param a_strText text of the current item
+     */
+    public void step(String a_strText)
+    {
+        this.m_strLabel = a_strText;
+        this.m_lItem = -1;
+        this.m_lSteps.incrementAndGet();
+    }
+
+    /**
+     * Counts a step without building the text of the current item.
+     * @param a_strLabel label of the current item, e.g. "Reading Scan #"
+     * @param a_lItem number of the current item appended to the label
+     */
+    public void step(String a_strLabel, long a_lItem)
+    {
+        this.m_strLabel = a_strLabel;
+        this.m_lItem = a_lItem;
+        this.m_lSteps.incrementAndGet();
+    }
+
+    public long getSteps()
+    {
+        return this.m_lSteps.get();
+    }
+
+    public int getMax()
+    {
+        return this.m_iMax;
+    }
+
+    /**
+     * Returns the text of the current item.
+     * @return String of the label followed by the item number if any
+     */
+    public String getCurrentItem()
+    {
+        String strLabel = this.m_strLabel;
+        long lItem = this.m_lItem;
+        return ( lItem < 0 ) ? strLabel : strLabel + lItem;
+    }
+
+    /**
+     * Updates the throughput with the steps counted since the last sample.
+     * This must be called by one polling thread at a time.
+     * @param a_lNanos current time from {@link System#nanoTime()}
+     */
+    public void sample(long a_lNanos)
+    {
+        long lSteps = this.m_lSteps.get();
+        if ( this.m_iSampledGeneration != this.m_iGeneration )
+        {
+            this.m_iSampledGeneration = this.m_iGeneration;
+            this.m_lSampledSteps = 0;
+            this.m_lSampledNanos = a_lNanos;
+            this.m_dStepsPerSecond = Double.NaN;
+            return;
+        }
+        long lElapsed = a_lNanos - this.m_lSampledNanos;
+        if ( lElapsed <= 0 || lSteps < this.m_lSampledSteps )
+            return;
+        double dRate = (lSteps - this.m_lSampledSteps) * 1e9 / lElapsed;
+        if ( Double.isNaN(this.m_dStepsPerSecond) )
+            this.m_dStepsPerSecond = ( lSteps == 0 ) ? Double.NaN : dRate;
+        else
+            this.m_dStepsPerSecond += RATE_SMOOTHING * (dRate - this.m_dStepsPerSecond);
+        this.m_lSampledSteps = lSteps;
+        this.m_lSampledNanos = a_lNanos;
+    }
+
+    /**
+     * Returns the smoothed throughput at the last sample.
+     * @return the number of the items processed per second, or NaN if not sampled yet
+     */
+    public double getItemsPerSecond()
+    {
+        return this.m_dStepsPerSecond * this.m_nItemsPerStep;
+    }
+
+    /**
+     * Returns the estimated remaining time at the last sample.
+     * @return the remaining time in seconds, or -1 if the number of the steps
+     *         or the throughput is unknown
+     */
+    public long getRemainingSeconds()
+    {
+        if ( this.m_iMax < 0 || Double.isNaN(this.m_dStepsPerSecond) || this.m_dStepsPerSecond <= 0 )
+            return -1;
+        long lRemaining = Math.max(0, this.m_iMax - this.m_lSampledSteps);
+        return (long) Math.ceil(lRemaining / this.m_dStepsPerSecond);
+    }
+
+    /**
+     * Returns the text of the current item with the throughput and the
+     * estimated remaining time, e.g. "Reading Scan #1200 (3400 scans/s, ETA 0:42)".
+     * @return String of the progress
+     */
+    public String getProgressText()
+    {
+        String strText = this.getCurrentItem();
+        double dRate = this.getItemsPerSecond();
+        if ( Double.isNaN(dRate) )
+            return strText;
+        StringBuilder sb = new StringBuilder(strText);
+        sb.append(" (").append(Math.round(dRate)).append(" scans/s");
+        long lSeconds = this.getRemainingSeconds();
+        if ( lSeconds >= 0 )
+            sb.append(String.format(", ETA %d:%02d", lSeconds / 60, lSeconds % 60));
+        return sb.append(')').toString();
+    }
+}
@@ -1,24 +1,92 @@
 package org.grits.toolbox.tools.spectrafiltering.dialog.process;
 
-public abstract class ProgressDialogThread extends Thread
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Task running in the background while the progress is shown by the reporter.
+ * The task is run on a shared executor by {@link #start()} and is canceled
+ * cooperatively through its {@link CancelToken}, which can be shared with the
+ * subtasks. The partial outputs are removed by {@link #cleanUp()} if the task
+ * is canceled or fails.
+ */
+public abstract class ProgressDialogThread implements Runnable
 {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r ->
+    {
+        Thread thread = new Thread(r, "ProgressDialogThread-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
     protected IProgressReporter m_progressReporter = null;
-    protected Boolean m_canceled = Boolean.FALSE;
+    private CancelToken m_cancelToken = new CancelToken();
+    private Future<?> m_future = null;
 
     public void setDialog(IProgressReporter a_reporter)
     {
         this.m_progressReporter = a_reporter;
     }
 
+    public CancelToken getCancelToken()
+    {
+        return this.m_cancelToken;
+    }
+
+    /**
+     * Shares the cancellation with another task, e.g. the task running this
+     * task as a subtask.
+     * @param a_token CancelToken of the other task
+     */
+    public void setCancelToken(CancelToken a_token)
+    {
+        this.m_cancelToken = a_token;
+    }
+
+    public boolean isCanceled()
+    {
+        return this.m_cancelToken.isCanceled();
+    }
+
+    /**
+     * Starts the task on the shared executor.
+     */
+    public void start()
+    {
+        this.m_future = EXECUTOR.submit(this);
+    }
+
+    /**
+     * Waits for the task started by {@link #start()} to finish.
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException
+    {
+        if ( this.m_future == null )
+            return;
+        try
+        {
+            this.m_future.get();
+        }
+        catch (ExecutionException e)
+        {
+            // The exception is reported by run()
+        }
+    }
+
     /**
-     * When start() is called in Thread class, this class will be invoked!
+     * When start() is called, this method will be invoked on the executor!
      */
     @Override
     public void run()
     {
         try
         {
-            boolean successful = this.threadStart();
+            boolean successful = this.execute();
             this.m_progressReporter.threadFinished(successful);
         }
         catch (Exception e)
@@ -27,10 +95,40 @@ public abstract class ProgressDialogThread extends Thread
         }
     }
 
+    /**
+     * Does the work on the current thread, and cleans up the partial outputs if
+     * the work is canceled or fails.
+     * @return {@code true} if the work is done successfully
+     * @throws Exception
+     */
+    public boolean execute() throws Exception
+    {
+        boolean successful = false;
+        try
+        {
+            successful = this.threadStart();
+        }
+        finally
+        {
+            if ( !successful )
+                this.cleanUp();
+        }
+        return successful;
+    }
+
     public abstract boolean threadStart() throws Exception;
 
+    /**
+     * Removes the partial outputs of the task. This is called if the task is
+     * canceled or fails, and does nothing by default.
+     * @throws Exception
+     */
+    protected void cleanUp() throws Exception
+    {
+    }
+
     public void cancelWork()
     {
-        this.m_canceled = Boolean.TRUE;
+        this.m_cancelToken.cancel();
     }
 }
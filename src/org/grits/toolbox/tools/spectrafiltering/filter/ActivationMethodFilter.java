@@ -0,0 +1,36 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Filter accepting a scan whose activation method is one of the given methods.
+ */
+public class ActivationMethodFilter implements IScanFilter {
+
+	private Set<String> m_setMethods;
+
+	/**
+	 * Constructor.
+	 * @param a_strMethods the activation methods to accept, e.g. "CID" and "HCD"
+	 */
+	public ActivationMethodFilter(String... a_strMethods) {
+		this.m_setMethods = new HashSet<>(Arrays.asList(a_strMethods));
+	}
+
+	@Override
+	public boolean accept(ScanContext a_scan) {
+		return this.m_setMethods.contains(a_scan.getActivationMethod());
+	}
+
+	@Override
+	public boolean needsPeaks() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "activationMethod" + this.m_setMethods;
+	}
+}
@@ -0,0 +1,51 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Filter accepting a scan if all filters accept it. The filters are evaluated
+ * in the given order, see {@link ScanFilterPlanner} to order them with their
+ * costs.
+ */
+public class AndFilter implements IScanFilter {
+
+	private List<IScanFilter> m_lFilters;
+
+	public AndFilter(IScanFilter... a_filters) {
+		this(Arrays.asList(a_filters));
+	}
+
+	public AndFilter(List<IScanFilter> a_lFilters) {
+		this.m_lFilters = new ArrayList<>(a_lFilters);
+	}
+
+	public List<IScanFilter> getFilters() {
+		return Collections.unmodifiableList(this.m_lFilters);
+	}
+
+	@Override
+	public boolean accept(ScanContext a_scan) {
+		for ( IScanFilter filter : this.m_lFilters ) {
+			if ( !filter.accept(a_scan) )
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean needsPeaks() {
+		for ( IScanFilter filter : this.m_lFilters ) {
+			if ( filter.needsPeaks() )
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "AND" + this.m_lFilters;
+	}
+}
@@ -0,0 +1,86 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+/**
+ * Counters of a filter evaluated by {@link ScanFilterPlanner}.
+ */
+public class FilterStatistics {
+
+	private String m_strName;
+	private long m_lEvaluations = 0L;
+	private long m_lHits = 0L;
+	private long m_lNanos = 0L;
+
+	public FilterStatistics(String a_strName) {
+		this.m_strName = a_strName;
+	}
+
+	void add(boolean a_bHit, long a_lNanos) {
+		this.m_lEvaluations++;
+		if ( a_bHit )
+			this.m_lHits++;
+		this.m_lNanos += a_lNanos;
+	}
+
+	/**
+	 * Adds the counters of the same filter evaluated by another planner.
+	 * @param a_statistics FilterStatistics to add
+	 */
+	public void add(FilterStatistics a_statistics) {
+		this.m_lEvaluations += a_statistics.m_lEvaluations;
+		this.m_lHits += a_statistics.m_lHits;
+		this.m_lNanos += a_statistics.m_lNanos;
+	}
+
+	public String getName() {
+		return this.m_strName;
+	}
+
+	/**
+	 * Returns the number of the evaluated scans.
+	 * @return the number of the evaluated scans
+	 */
+	public long getEvaluations() {
+		return this.m_lEvaluations;
+	}
+
+	/**
+	 * Returns the number of the accepted scans.
+	 * @return the number of the accepted scans
+	 */
+	public long getHits() {
+		return this.m_lHits;
+	}
+
+	/**
+	 * Returns the total time of the evaluations including the nested filters.
+	 * @return the time in nanoseconds
+	 */
+	public long getNanos() {
+		return this.m_lNanos;
+	}
+
+	/**
+	 * Returns the ratio of the accepted scans, smoothed so that the filters not
+	 * evaluated yet have 0.5.
+	 * @return the ratio of the accepted scans
+	 */
+	public double getHitRate() {
+		return (this.m_lHits + 1.0) / (this.m_lEvaluations + 2.0);
+	}
+
+	/**
+	 * Returns the average time of the evaluations.
+	 * @return the average time in nanoseconds, or 0 if not evaluated yet
+	 */
+	public double getAverageNanos() {
+		if ( this.m_lEvaluations == 0 )
+			return 0;
+		return (double) this.m_lNanos / this.m_lEvaluations;
+	}
+
+	@Override
+	public String toString() {
+		return this.m_strName + ": " + this.m_lHits + "/" + this.m_lEvaluations + " hits, "
+				+ (this.m_lNanos / 1000000) + " ms";
+	}
+}
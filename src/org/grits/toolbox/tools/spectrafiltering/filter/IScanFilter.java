@@ -0,0 +1,25 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+/**
+ * Predicate on a scan to pick the scans. Filters which only read the header
+ * values of the scan should return {@code false} from {@link #needsPeaks()}, so
+ * that they are evaluated before the filters decoding the peaks. Filters can be
+ * combined with {@link AndFilter}, {@link OrFilter} and {@link NotFilter}, and
+ * are evaluated through {@link ScanFilterPlanner}.
+ */
+public interface IScanFilter {
+
+	/**
+	 * Returns whether the scan is accepted.
+	 * @param a_scan ScanContext of the scan
+	 * @return {@code true} if the scan is accepted
+	 */
+	public boolean accept(ScanContext a_scan);
+
+	/**
+	 * Returns whether the filter needs the peaks of the scan, which are decoded
+	 * on demand by {@link ScanContext#getPeaks()}.
+	 * @return {@code true} if the peaks are needed
+	 */
+	public boolean needsPeaks();
+}
@@ -0,0 +1,55 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.grits.toolbox.tools.spectrafiltering.om.PickerTarget;
+import org.grits.toolbox.tools.spectrafiltering.utils.PeakTargetMatcher;
+
+/**
+ * Filter accepting a scan which has a peak of any of the target ions. The
+ * peaks are not decoded if no target can be hit by the header values.
+ */
+public class IonFilter implements IScanFilter {
+
+	private List<PickerTarget> m_lTargets;
+	private PeakTargetMatcher m_matcher;
+
+	/**
+	 * Constructor.
+	 * @param a_lTargets List of the targets, whose values must be all set
+	 */
+	public IonFilter(List<PickerTarget> a_lTargets) {
+		this.m_lTargets = new ArrayList<>(a_lTargets);
+		this.m_matcher = new PeakTargetMatcher(this.m_lTargets);
+	}
+
+	@Override
+	public boolean accept(ScanContext a_scan) {
+		BitSet candidates = this.m_matcher.getCandidates(a_scan.getLowMz(), a_scan.getHighMz(),
+				a_scan.getBasePeakIntensity());
+		if ( candidates.isEmpty() )
+			return false;
+		double[][] peaks = a_scan.getPeaks();
+		if ( peaks == null )
+			return false;
+		return !this.m_matcher.match(peaks, candidates).isEmpty();
+	}
+
+	@Override
+	public boolean needsPeaks() {
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ion[");
+		for ( int i = 0; i < this.m_lTargets.size(); i++ ) {
+			if ( i > 0 )
+				sb.append(", ");
+			sb.append(this.m_lTargets.get(i).getMzValue());
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,61 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.grits.toolbox.tools.spectrafiltering.om.PickerTarget;
+import org.grits.toolbox.tools.spectrafiltering.utils.NeutralLossMatcher;
+
+/**
+ * Filter accepting a scan which has a fragment ion of any of the neutral
+ * losses from its precursor ion. The peaks are not decoded if no loss can be
+ * hit by the header values.
+ */
+public class NeutralLossFilter implements IScanFilter {
+
+	private List<PickerTarget> m_lLosses;
+	private NeutralLossMatcher m_matcher;
+
+	/**
+	 * Constructor.
+	 * @param a_lLosses List of the losses, whose values must be all set and
+	 *        whose m/z values are the masses of the losses
+	 * @param a_bAllChargeStates true to look for the fragment ions at every
+	 *        charge state from 1 to the one of the precursor ion, false for only
+	 *        the charge state of the precursor ion
+	 */
+	public NeutralLossFilter(List<PickerTarget> a_lLosses, boolean a_bAllChargeStates) {
+		this.m_lLosses = new ArrayList<>(a_lLosses);
+		this.m_matcher = new NeutralLossMatcher(this.m_lLosses, a_bAllChargeStates);
+	}
+
+	@Override
+	public boolean accept(ScanContext a_scan) {
+		double dPrecursorMz = a_scan.getPrecursorMz();
+		int iPrecursorCharge = a_scan.getPrecursorCharge();
+		if ( !this.m_matcher.canHit(dPrecursorMz, iPrecursorCharge,
+				a_scan.getLowMz(), a_scan.getHighMz(), a_scan.getBasePeakIntensity()) )
+			return false;
+		double[][] peaks = a_scan.getPeaks();
+		if ( peaks == null )
+			return false;
+		return !this.m_matcher.match(dPrecursorMz, iPrecursorCharge, peaks).isEmpty();
+	}
+
+	@Override
+	public boolean needsPeaks() {
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("neutralLoss[");
+		for ( int i = 0; i < this.m_lLosses.size(); i++ ) {
+			if ( i > 0 )
+				sb.append(", ");
+			PickerTarget loss = this.m_lLosses.get(i);
+			sb.append( ( loss.getName() != null )? loss.getName() : loss.getMzValue().toString() );
+		}
+		return sb.append(']').toString();
+	}
+}
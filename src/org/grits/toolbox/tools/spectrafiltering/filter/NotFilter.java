@@ -0,0 +1,32 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+/**
+ * Filter accepting a scan if the given filter rejects it.
+ */
+public class NotFilter implements IScanFilter {
+
+	private IScanFilter m_filter;
+
+	public NotFilter(IScanFilter a_filter) {
+		this.m_filter = a_filter;
+	}
+
+	public IScanFilter getFilter() {
+		return this.m_filter;
+	}
+
+	@Override
+	public boolean accept(ScanContext a_scan) {
+		return !this.m_filter.accept(a_scan);
+	}
+
+	@Override
+	public boolean needsPeaks() {
+		return this.m_filter.needsPeaks();
+	}
+
+	@Override
+	public String toString() {
+		return "NOT(" + this.m_filter + ")";
+	}
+}
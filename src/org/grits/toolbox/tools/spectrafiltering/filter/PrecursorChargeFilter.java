@@ -0,0 +1,39 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+import java.util.Arrays;
+
+/**
+ * Filter accepting a scan whose precursor charge is one of the given charges.
+ */
+public class PrecursorChargeFilter implements IScanFilter {
+
+	private int[] m_aCharges;
+
+	/**
+	 * Constructor.
+	 * @param a_aCharges the charges to accept, -1 to accept the scans without charge
+	 */
+	public PrecursorChargeFilter(int... a_aCharges) {
+		this.m_aCharges = a_aCharges.clone();
+	}
+
+	@Override
+	public boolean accept(ScanContext a_scan) {
+		int iCharge = a_scan.getPrecursorCharge();
+		for ( int i : this.m_aCharges ) {
+			if ( i == iCharge )
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean needsPeaks() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "precursorCharge" + Arrays.toString(this.m_aCharges);
+	}
+}
@@ -0,0 +1,36 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+/**
+ * Filter accepting a scan whose precursor m/z value is in the range.
+ */
+public class PrecursorMzFilter implements IScanFilter {
+
+	private double m_dMinMz;
+	private double m_dMaxMz;
+
+	/**
+	 * Constructor.
+	 * @param a_dMinMz the lowest precursor m/z value, inclusive
+	 * @param a_dMaxMz the highest precursor m/z value, inclusive
+	 */
+	public PrecursorMzFilter(double a_dMinMz, double a_dMaxMz) {
+		this.m_dMinMz = a_dMinMz;
+		this.m_dMaxMz = a_dMaxMz;
+	}
+
+	@Override
+	public boolean accept(ScanContext a_scan) {
+		double dMz = a_scan.getPrecursorMz();
+		return dMz >= this.m_dMinMz && dMz <= this.m_dMaxMz;
+	}
+
+	@Override
+	public boolean needsPeaks() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "precursorMz[" + this.m_dMinMz + ", " + this.m_dMaxMz + "]";
+	}
+}
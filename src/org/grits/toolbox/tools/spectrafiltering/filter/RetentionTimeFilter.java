@@ -0,0 +1,38 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+/**
+ * Filter accepting a scan whose retention time is in the range. Scans without
+ * the retention time are rejected.
+ */
+public class RetentionTimeFilter implements IScanFilter {
+
+	private double m_dMinTime;
+	private double m_dMaxTime;
+
+	/**
+	 * Constructor.
+	 * @param a_dMinTime the earliest retention time in seconds, inclusive
+	 * @param a_dMaxTime the latest retention time in seconds, inclusive
+	 */
+	public RetentionTimeFilter(double a_dMinTime, double a_dMaxTime) {
+		this.m_dMinTime = a_dMinTime;
+		this.m_dMaxTime = a_dMaxTime;
+	}
+
+	@Override
+	public boolean accept(ScanContext a_scan) {
+		double dTime = a_scan.getRetentionTime();
+		// NaN is always rejected
+		return dTime >= this.m_dMinTime && dTime <= this.m_dMaxTime;
+	}
+
+	@Override
+	public boolean needsPeaks() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "retentionTime[" + this.m_dMinTime + ", " + this.m_dMaxTime + "]";
+	}
+}
@@ -0,0 +1,141 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+import java.util.function.IntFunction;
+
+import org.grits.toolbox.tools.spectrafiltering.om.ScanHeaderTable;
+import org.systemsbiology.jrap.grits.stax.Scan;
+import org.systemsbiology.jrap.grits.stax.ScanHeader;
+
+/**
+ * Scan given to {@link IScanFilter}. The header values are read from a row of
+ * ScanHeaderTable or from a ScanHeader, and the peaks are loaded only when
+ * {@link #getPeaks()} is called for the first time.
+ */
+public class ScanContext {
+
+	private ScanHeaderTable m_headers = null;
+	private int m_iRow = -1;
+	private ScanHeader m_header = null;
+	private IntFunction<Scan> m_loader = null;
+	private Scan m_scan = null;
+
+	/**
+	 * Constructor for a scan whose header is in the table.
+	 * @param a_headers ScanHeaderTable of the scans
+	 * @param a_iRow index of the row of the scan
+	 * @param a_loader function to read the Scan of the scan number, e.g. MSXMLParser#rap(int)
+	 */
+	public ScanContext(ScanHeaderTable a_headers, int a_iRow, IntFunction<Scan> a_loader) {
+		this.m_headers = a_headers;
+		this.m_iRow = a_iRow;
+		this.m_loader = a_loader;
+	}
+
+	/**
+	 * Constructor for a scan already read.
+	 * @param a_scan Scan
+	 */
+	public ScanContext(Scan a_scan) {
+		this.m_scan = a_scan;
+		this.m_header = a_scan.getHeader();
+	}
+
+	public int getScanNum() {
+		return ( this.m_headers != null )? this.m_headers.getScanNum(this.m_iRow) : this.m_header.getNum();
+	}
+
+	public int getMsLevel() {
+		return ( this.m_headers != null )? this.m_headers.getMsLevel(this.m_iRow) : this.m_header.getMsLevel();
+	}
+
+	public int getPrecursorScanNum() {
+		return ( this.m_headers != null )?
+				this.m_headers.getPrecursorScanNum(this.m_iRow) : this.m_header.getPrecursorScanNum();
+	}
+
+	public double getPrecursorMz() {
+		return ( this.m_headers != null )?
+				this.m_headers.getPrecursorMz(this.m_iRow) : this.m_header.getPrecursorMz();
+	}
+
+	public int getPrecursorCharge() {
+		return ( this.m_headers != null )?
+				this.m_headers.getPrecursorCharge(this.m_iRow) : this.m_header.getPrecursorCharge();
+	}
+
+	public String getActivationMethod() {
+		return ( this.m_headers != null )?
+				this.m_headers.getActivationMethod(this.m_iRow) : this.m_header.getActivationMethod();
+	}
+
+	/**
+	 * Returns the retention time in seconds.
+	 * @return the retention time in seconds, or NaN if it is not available
+	 */
+	public double getRetentionTime() {
+		return ( this.m_headers != null )?
+				this.m_headers.getRetentionTime(this.m_iRow) : ScanHeaderTable.getRetentionTime(this.m_header);
+	}
+
+	public int getPeaksCount() {
+		return ( this.m_headers != null )? this.m_headers.getPeaksCount(this.m_iRow) : this.m_header.getPeaksCount();
+	}
+
+	/**
+	 * Returns the lowest m/z value of the peaks.
+	 * @return the lowest m/z value, or -1 if it is not available
+	 */
+	public float getLowMz() {
+		return ( this.m_headers != null )? this.m_headers.getLowMz(this.m_iRow) : this.m_header.getLowMz();
+	}
+
+	/**
+	 * Returns the highest m/z value of the peaks.
+	 * @return the highest m/z value, or -1 if it is not available
+	 */
+	public float getHighMz() {
+		return ( this.m_headers != null )? this.m_headers.getHighMz(this.m_iRow) : this.m_header.getHighMz();
+	}
+
+	/**
+	 * Returns the intensity of the base peak.
+	 * @return the intensity of the base peak, or -1 if it is not available
+	 */
+	public float getBasePeakIntensity() {
+		return ( this.m_headers != null )?
+				this.m_headers.getBasePeakIntensity(this.m_iRow) : this.m_header.getBasePeakIntensity();
+	}
+
+	/**
+	 * Returns the Scan, which is read at the first call.
+	 * @return Scan, or {@code null} if the scan cannot be read
+	 */
+	public Scan getScan() {
+		if ( this.m_scan == null && this.m_loader != null ) {
+			this.m_scan = this.m_loader.apply(this.getScanNum());
+			this.m_loader = null;
+		}
+		return this.m_scan;
+	}
+
+	/**
+	 * Returns the peaks, which are decoded at the first call.
+	 * @return double matrix of the peaks, the first row (double[0]) are the m/z
+	 *         values and the second row (double[1]) are the intensity values, or
+	 *         {@code null} if the scan cannot be read
+	 */
+	public double[][] getPeaks() {
+		Scan scan = this.getScan();
+		if ( scan == null )
+			return null;
+		return scan.getMassIntensityList();
+	}
+
+	/**
+	 * Returns whether the peaks have been loaded.
+	 * @return {@code true} if the peaks have been loaded
+	 */
+	public boolean isPeaksLoaded() {
+		return this.m_scan != null;
+	}
+}
@@ -0,0 +1,173 @@
+package org.grits.toolbox.tools.spectrafiltering.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Evaluates a tree of filters in the order of their costs. The filters only
+ * reading the header values are always evaluated before the filters needing the
+ * peaks, so that the peaks are decoded only if the scan passes the header
+ * filters. The operands of AND and OR are reordered periodically with their
+ * counters, by the average time per the probability to decide the result, that
+ * is, the rejection rate for AND and the hit rate for OR. Nested AND and OR are
+ * flattened and double NOT is removed.
+ * <p>
+ * The counters are not synchronized, so a planner must be used by one thread.
+ */
+public class ScanFilterPlanner implements IScanFilter {
+
+	/** The number of evaluations between the reorderings of the operands */
+	private static final int REORDER_INTERVAL = 256;
+
+	private Node m_root;
+	private List<FilterStatistics> m_lStatistics = new ArrayList<>();
+
+	private static final int LEAF = 0;
+	private static final int AND = 1;
+	private static final int OR = 2;
+	private static final int NOT = 3;
+
+	/** Filter in the plan with its counters */
+	private static class Node {
+		private int iType;
+		private IScanFilter filter;
+		private Node[] aChildren;
+		private boolean bNeedsPeaks;
+		private FilterStatistics statistics;
+		private int nUntilReorder = REORDER_INTERVAL;
+	}
+
+	/**
+	 * Constructor.
+	 * @param a_filter the root of the filters
+	 */
+	public ScanFilterPlanner(IScanFilter a_filter) {
+		this.m_root = this.plan(a_filter);
+	}
+
+	private Node plan(IScanFilter a_filter) {
+		Node node = new Node();
+		node.filter = a_filter;
+		node.bNeedsPeaks = a_filter.needsPeaks();
+		node.statistics = new FilterStatistics(a_filter.toString());
+		this.m_lStatistics.add(node.statistics);
+
+		if ( a_filter instanceof NotFilter ) {
+			IScanFilter filter = ((NotFilter) a_filter).getFilter();
+			// Removes double NOT
+			if ( filter instanceof NotFilter ) {
+				this.m_lStatistics.remove(node.statistics);
+				return this.plan(((NotFilter) filter).getFilter());
+			}
+			node.iType = NOT;
+			node.aChildren = new Node[] { this.plan(filter) };
+			return node;
+		}
+
+		List<IScanFilter> lFilters = null;
+		if ( a_filter instanceof AndFilter ) {
+			node.iType = AND;
+			lFilters = flatten(a_filter, AndFilter.class);
+		} else if ( a_filter instanceof OrFilter ) {
+			node.iType = OR;
+			lFilters = flatten(a_filter, OrFilter.class);
+		} else {
+			node.iType = LEAF;
+			return node;
+		}
+		node.aChildren = new Node[lFilters.size()];
+		for ( int i = 0; i < node.aChildren.length; i++ )
+			node.aChildren[i] = this.plan(lFilters.get(i));
+		// Header filters first, keeping the given order
+		Arrays.sort(node.aChildren, Comparator.comparing((Node child) -> child.bNeedsPeaks));
+		return node;
+	}
+
+	private static List<IScanFilter> flatten(IScanFilter a_filter, Class<? extends IScanFilter> a_class) {
+		List<IScanFilter> lFilters = new ArrayList<>();
+		List<IScanFilter> lOperands = ( a_filter instanceof AndFilter )?
+				((AndFilter) a_filter).getFilters() : ((OrFilter) a_filter).getFilters();
+		for ( IScanFilter filter : lOperands ) {
+			if ( a_class.isInstance(filter) )
+				lFilters.addAll(flatten(filter, a_class));
+			else
+				lFilters.add(filter);
+		}
+		return lFilters;
+	}
+
+	@Override
+	public boolean accept(ScanContext a_scan) {
+		return this.accept(this.m_root, a_scan);
+	}
+
+	private boolean accept(Node a_node, ScanContext a_scan) {
+		long lStart = System.nanoTime();
+		boolean bAccepted;
+		switch ( a_node.iType ) {
+		case NOT:
+			bAccepted = !this.accept(a_node.aChildren[0], a_scan);
+			break;
+		case AND:
+			bAccepted = true;
+			for ( Node child : a_node.aChildren ) {
+				if ( !this.accept(child, a_scan) ) {
+					bAccepted = false;
+					break;
+				}
+			}
+			break;
+		case OR:
+			bAccepted = false;
+			for ( Node child : a_node.aChildren ) {
+				if ( this.accept(child, a_scan) ) {
+					bAccepted = true;
+					break;
+				}
+			}
+			break;
+		default:
+			bAccepted = a_node.filter.accept(a_scan);
+		}
+		a_node.statistics.add(bAccepted, System.nanoTime() - lStart);
+
+		if ( a_node.aChildren != null && a_node.aChildren.length > 1 && --a_node.nUntilReorder == 0 ) {
+			reorder(a_node);
+			a_node.nUntilReorder = REORDER_INTERVAL;
+		}
+		return bAccepted;
+	}
+
+	/**
+	 * Sorts the operands with the expected cost to decide the result.
+	 */
+	private static void reorder(Node a_node) {
+		boolean bAnd = ( a_node.iType == AND );
+		Arrays.sort(a_node.aChildren, Comparator.comparing((Node child) -> child.bNeedsPeaks)
+				.thenComparingDouble(child -> {
+					FilterStatistics statistics = child.statistics;
+					double dDecisive = bAnd ? 1 - statistics.getHitRate() : statistics.getHitRate();
+					return statistics.getAverageNanos() / dDecisive;
+				}));
+	}
+
+	@Override
+	public boolean needsPeaks() {
+		return this.m_root.bNeedsPeaks;
+	}
+
+	/**
+	 * Returns the counters of the filters in the plan, starting with the root.
+	 * @return List of FilterStatistics
+	 */
+	public List<FilterStatistics> getStatistics() {
+		return this.m_lStatistics;
+	}
+
+	@Override
+	public String toString() {
+		return this.m_root.filter.toString();
+	}
+}
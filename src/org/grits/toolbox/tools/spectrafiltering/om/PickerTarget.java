@@ -0,0 +1,76 @@
+package org.grits.toolbox.tools.spectrafiltering.om;
+
+/**
+ * Target ion to pick scans with its own tolerance and cutoff. The values which
+ * are not set are taken from the SpectraPickerSettings.
+ */
+public class PickerTarget {
+
+	private String	m_strName		= null;
+	private Double	m_dMzValue		= null;
+	private Double	m_dAccuracy		= null;
+	private Boolean	m_bIsPPM		= null;
+	private Double	m_dCutOff		= null;
+	private Boolean	m_bIsPercentage	= null;
+
+	public PickerTarget() {
+	}
+
+	/**
+	 * Constructor.
+	 * @param a_strName name of the target used for the output file, or null to use the m/z value
+	 * @param a_mzValue m/z value of the target
+	 */
+	public PickerTarget(String a_strName, Double a_mzValue) {
+		this.m_strName = a_strName;
+		this.m_dMzValue = a_mzValue;
+	}
+
+	public String getName() {
+		return m_strName;
+	}
+
+	public void setName(String a_strName) {
+		this.m_strName = a_strName;
+	}
+
+	public Double getMzValue() {
+		return m_dMzValue;
+	}
+
+	public void setMzValue(Double a_mzValue) {
+		this.m_dMzValue = a_mzValue;
+	}
+
+	public Double getAccuracy() {
+		return m_dAccuracy;
+	}
+
+	public void setAccuracy(Double a_accuracy) {
+		this.m_dAccuracy = a_accuracy;
+	}
+
+	public Boolean getPPM() {
+		return m_bIsPPM;
+	}
+
+	public void setPPM(Boolean ppm) {
+		this.m_bIsPPM = ppm;
+	}
+
+	public Double getCutOffValue() {
+		return m_dCutOff;
+	}
+
+	public void setCutOffValue(Double a_cutOfValue) {
+		this.m_dCutOff = a_cutOfValue;
+	}
+
+	public Boolean getPercentage() {
+		return m_bIsPercentage;
+	}
+
+	public void setPercentage(Boolean prcnt) {
+		this.m_bIsPercentage = prcnt;
+	}
+}
@@ -0,0 +1,263 @@
+package org.grits.toolbox.tools.spectrafiltering.om;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.systemsbiology.jrap.grits.stax.ScanHeader;
+
+/**
+ * Compact table of the scan header fields used to pick and group scans. The
+ * fields are stored in parallel primitive arrays instead of keeping ScanHeader
+ * objects, and the activation methods are interned as integer codes. Rows are
+ * kept in order of addition.
+ */
+public class ScanHeaderTable {
+
+	private int m_nRows = 0;
+	private int[] m_aScanNums;
+	private byte[] m_aMsLevels;
+	private int[] m_aPrecursorScanNums;
+	private double[] m_aPrecursorMzs;
+	private int[] m_aPrecursorCharges;
+	private int[] m_aPeaksCounts;
+	private double[] m_aRetentionTimes;
+	private int[] m_aActivationCodes;
+	private float[] m_aLowMzs;
+	private float[] m_aHighMzs;
+	private float[] m_aBasePeakIntensities;
+
+	private List<String> m_lActivationMethods = new ArrayList<>();
+	private Map<String, Integer> m_mapActivationMethodToCode = new HashMap<>();
+
+	public ScanHeaderTable() {
+		this(1024);
+	}
+
+	/**
+	 * Constructor.
+	 * @param a_nCapacity initial number of rows to allocate
+	 */
+	public ScanHeaderTable(int a_nCapacity) {
+		int n = Math.max(a_nCapacity, 16);
+		this.m_aScanNums = new int[n];
+		this.m_aMsLevels = new byte[n];
+		this.m_aPrecursorScanNums = new int[n];
+		this.m_aPrecursorMzs = new double[n];
+		this.m_aPrecursorCharges = new int[n];
+		this.m_aPeaksCounts = new int[n];
+		this.m_aRetentionTimes = new double[n];
+		this.m_aActivationCodes = new int[n];
+		this.m_aLowMzs = new float[n];
+		this.m_aHighMzs = new float[n];
+		this.m_aBasePeakIntensities = new float[n];
+	}
+
+	/**
+	 * Constructor with the columns, which are used without copying. Used to
+	 * restore a table saved in a file.
+	 * @param a_nRows the number of rows
+	 * @param a_aScanNums scan numbers
+	 * @param a_aMsLevels MS levels
+	 * @param a_aPrecursorScanNums scan numbers of the precursor scans
+	 * @param a_aPrecursorMzs precursor m/z values
+	 * @param a_aPrecursorCharges precursor charges
+	 * @param a_aPeaksCounts the numbers of peaks
+	 * @param a_aRetentionTimes retention times in seconds
+	 * @param a_aActivationCodes codes of the activation methods
+	 * @param a_lActivationMethods activation methods in order of the codes
+	 * @param a_aLowMzs the lowest m/z values of the peaks
+	 * @param a_aHighMzs the highest m/z values of the peaks
+	 * @param a_aBasePeakIntensities intensities of the base peaks
+	 */
+	public ScanHeaderTable(int a_nRows, int[] a_aScanNums, byte[] a_aMsLevels, int[] a_aPrecursorScanNums,
+			double[] a_aPrecursorMzs, int[] a_aPrecursorCharges, int[] a_aPeaksCounts, double[] a_aRetentionTimes,
+			int[] a_aActivationCodes, List<String> a_lActivationMethods, float[] a_aLowMzs, float[] a_aHighMzs,
+			float[] a_aBasePeakIntensities) {
+		this.m_nRows = a_nRows;
+		this.m_aScanNums = a_aScanNums;
+		this.m_aMsLevels = a_aMsLevels;
+		this.m_aPrecursorScanNums = a_aPrecursorScanNums;
+		this.m_aPrecursorMzs = a_aPrecursorMzs;
+		this.m_aPrecursorCharges = a_aPrecursorCharges;
+		this.m_aPeaksCounts = a_aPeaksCounts;
+		this.m_aRetentionTimes = a_aRetentionTimes;
+		this.m_aActivationCodes = a_aActivationCodes;
+		this.m_aLowMzs = a_aLowMzs;
+		this.m_aHighMzs = a_aHighMzs;
+		this.m_aBasePeakIntensities = a_aBasePeakIntensities;
+		for ( String strActivationMethod : a_lActivationMethods )
+			this.internActivationMethod(strActivationMethod);
+	}
+
+	/**
+	 * Adds a row of the given ScanHeader.
+	 * @param a_header ScanHeader to add
+	 * @return index of the added row
+	 */
+	public int addScanHeader(ScanHeader a_header) {
+		if ( this.m_nRows == this.m_aScanNums.length ) {
+			int n = this.m_nRows * 2;
+			this.m_aScanNums = Arrays.copyOf(this.m_aScanNums, n);
+			this.m_aMsLevels = Arrays.copyOf(this.m_aMsLevels, n);
+			this.m_aPrecursorScanNums = Arrays.copyOf(this.m_aPrecursorScanNums, n);
+			this.m_aPrecursorMzs = Arrays.copyOf(this.m_aPrecursorMzs, n);
+			this.m_aPrecursorCharges = Arrays.copyOf(this.m_aPrecursorCharges, n);
+			this.m_aPeaksCounts = Arrays.copyOf(this.m_aPeaksCounts, n);
+			this.m_aRetentionTimes = Arrays.copyOf(this.m_aRetentionTimes, n);
+			this.m_aActivationCodes = Arrays.copyOf(this.m_aActivationCodes, n);
+			this.m_aLowMzs = Arrays.copyOf(this.m_aLowMzs, n);
+			this.m_aHighMzs = Arrays.copyOf(this.m_aHighMzs, n);
+			this.m_aBasePeakIntensities = Arrays.copyOf(this.m_aBasePeakIntensities, n);
+		}
+		int i = this.m_nRows++;
+		this.m_aScanNums[i] = a_header.getNum();
+		this.m_aMsLevels[i] = (byte) a_header.getMsLevel();
+		this.m_aPrecursorScanNums[i] = a_header.getPrecursorScanNum();
+		this.m_aPrecursorMzs[i] = a_header.getPrecursorMz();
+		this.m_aPrecursorCharges[i] = a_header.getPrecursorCharge();
+		this.m_aPeaksCounts[i] = a_header.getPeaksCount();
+		this.m_aRetentionTimes[i] = getRetentionTime(a_header);
+		this.m_aActivationCodes[i] = this.internActivationMethod(a_header.getActivationMethod());
+		this.m_aLowMzs[i] = a_header.getLowMz();
+		this.m_aHighMzs[i] = a_header.getHighMz();
+		this.m_aBasePeakIntensities[i] = a_header.getBasePeakIntensity();
+		return i;
+	}
+
+	/**
+	 * Returns the retention time of the ScanHeader in seconds.
+	 * @param a_header ScanHeader
+	 * @return the retention time in seconds, or NaN if it is not available
+	 */
+	public static double getRetentionTime(ScanHeader a_header) {
+		if ( a_header.getRetentionTime() == null || a_header.getRetentionTime().isEmpty() )
+			return Double.NaN;
+		try {
+			return a_header.getDoubleRetentionTime();
+		} catch (IllegalArgumentException e) {
+			return Double.NaN;
+		}
+	}
+
+	private int internActivationMethod(String a_strActivationMethod) {
+		Integer iCode = this.m_mapActivationMethodToCode.get(a_strActivationMethod);
+		if ( iCode == null ) {
+			iCode = this.m_lActivationMethods.size();
+			this.m_lActivationMethods.add(a_strActivationMethod);
+			this.m_mapActivationMethodToCode.put(a_strActivationMethod, iCode);
+		}
+		return iCode;
+	}
+
+	/**
+	 * Returns the number of rows.
+	 * @return the number of rows
+	 */
+	public int size() {
+		return this.m_nRows;
+	}
+
+	/**
+	 * Returns the row of the scan number. The rows are searched by bisection if
+	 * they are in ascending order of the scan numbers as they are read from the
+	 * file, otherwise linearly.
+	 * @param a_iScanNum the scan number
+	 * @return index of the row, or -1 if the scan is not in this table
+	 */
+	public int getRow(int a_iScanNum) {
+		int iRow = Arrays.binarySearch(this.m_aScanNums, 0, this.m_nRows, a_iScanNum);
+		if ( iRow >= 0 )
+			return iRow;
+		for ( int i = 0; i < this.m_nRows; i++ ) {
+			if ( this.m_aScanNums[i] == a_iScanNum )
+				return i;
+		}
+		return -1;
+	}
+
+	public int getScanNum(int a_iRow) {
+		return this.m_aScanNums[a_iRow];
+	}
+
+	public int getMsLevel(int a_iRow) {
+		return this.m_aMsLevels[a_iRow];
+	}
+
+	public int getPrecursorScanNum(int a_iRow) {
+		return this.m_aPrecursorScanNums[a_iRow];
+	}
+
+	public double getPrecursorMz(int a_iRow) {
+		return this.m_aPrecursorMzs[a_iRow];
+	}
+
+	public int getPrecursorCharge(int a_iRow) {
+		return this.m_aPrecursorCharges[a_iRow];
+	}
+
+	public int getPeaksCount(int a_iRow) {
+		return this.m_aPeaksCounts[a_iRow];
+	}
+
+	/**
+	 * Returns the lowest m/z value of the peaks.
+	 * @param a_iRow index of the row
+	 * @return the lowest m/z value, or -1 if it is not available
+	 */
+	public float getLowMz(int a_iRow) {
+		return this.m_aLowMzs[a_iRow];
+	}
+
+	/**
+	 * Returns the highest m/z value of the peaks.
+	 * @param a_iRow index of the row
+	 * @return the highest m/z value, or -1 if it is not available
+	 */
+	public float getHighMz(int a_iRow) {
+		return this.m_aHighMzs[a_iRow];
+	}
+
+	/**
+	 * Returns the intensity of the base peak.
+	 * @param a_iRow index of the row
+	 * @return the intensity of the base peak, or -1 if it is not available
+	 */
+	public float getBasePeakIntensity(int a_iRow) {
+		return this.m_aBasePeakIntensities[a_iRow];
+	}
+
+	/**
+	 * Returns the retention time in seconds.
+	 * @param a_iRow index of the row
+	 * @return the retention time in seconds, or NaN if it is not available
+	 */
+	public double getRetentionTime(int a_iRow) {
+		return this.m_aRetentionTimes[a_iRow];
+	}
+
+	/**
+	 * Returns the interned code of the activation method. The same activation
+	 * methods have the same code in this table.
+	 * @param a_iRow index of the row
+	 * @return the code of the activation method
+	 */
+	public int getActivationCode(int a_iRow) {
+		return this.m_aActivationCodes[a_iRow];
+	}
+
+	public String getActivationMethod(int a_iRow) {
+		return this.m_lActivationMethods.get(this.m_aActivationCodes[a_iRow]);
+	}
+
+	/**
+	 * Returns the activation methods in order of their codes.
+	 * @return List of the activation methods
+	 */
+	public List<String> getActivationMethods() {
+		return Collections.unmodifiableList(this.m_lActivationMethods);
+	}
+}
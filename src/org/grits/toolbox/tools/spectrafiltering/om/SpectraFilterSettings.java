@@ -8,6 +8,10 @@ public class SpectraFilterSettings {
 	private Double	m_dCutOff		= null;
 	private Boolean	m_bIsPPM;
 	private Boolean	m_bIsPercentage;
+	private Integer	m_iParallelism	= null;
+	private Boolean	m_bUseHeaderIndex	= null;
+	private Integer	m_iCompressionLevel	= null;
+	private Boolean	m_bSinglePassMerge	= Boolean.FALSE;
 	
 	public String getOpenFrom() {
 		return m_strOpenFrom;
@@ -57,5 +61,56 @@ public class SpectraFilterSettings {
 		this.m_bIsPercentage = prcnt;
 	}
 	
+	/**
+	 * Returns the number of threads to process scans concurrently.
+	 * @return the number of threads, or null to use all available processors
+	 */
+	public Integer getParallelism() {
+		return m_iParallelism;
+	}
+	
+	public void setParallelism(Integer a_iParallelism) {
+		this.m_iParallelism = a_iParallelism;
+	}
+	
+	/**
+	 * Returns whether the scan headers are cached in a sidecar index file next to
+	 * the input file.
+	 * @return true if the header index is used
+	 */
+	public Boolean getUseHeaderIndex() {
+		return m_bUseHeaderIndex;
+	}
+	
+	public void setUseHeaderIndex(Boolean a_bUseHeaderIndex) {
+		this.m_bUseHeaderIndex = a_bUseHeaderIndex;
+	}
+	
+	/**
+	 * Returns zlib compression level of the peaks in the output file.
+	 * @return compression level from 0 to 9, or null not to compress
+	 */
+	public Integer getCompressionLevel() {
+		return m_iCompressionLevel;
+	}
+	
+	public void setCompressionLevel(Integer a_iCompressionLevel) {
+		this.m_iCompressionLevel = a_iCompressionLevel;
+	}
+	
+	/**
+	 * Returns whether the peaks of a group of MS2 scans are merged in a single
+	 * pass instead of being added to the first scan in turn. The single pass is
+	 * faster for large groups, but the averaged peaks differ from the default.
+	 * @return true if the peaks are merged in a single pass
+	 */
+	public Boolean getSinglePassMerge() {
+		return m_bSinglePassMerge;
+	}
+	
+	public void setSinglePassMerge(Boolean a_bSinglePassMerge) {
+		this.m_bSinglePassMerge = a_bSinglePassMerge;
+	}
+	
 }
 
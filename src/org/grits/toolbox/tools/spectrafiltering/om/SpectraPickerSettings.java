@@ -1,8 +1,20 @@
 package org.grits.toolbox.tools.spectrafiltering.om;
 
+import java.util.List;
+
+import org.grits.toolbox.tools.spectrafiltering.filter.IScanFilter;
+
 public class SpectraPickerSettings extends SpectraFilterSettings {
 	
 	private Double	m_dMzValue	= null;
+	private List<PickerTarget>	m_lTargets	= null;
+	private Boolean	m_bIsOutputPerTarget	= Boolean.FALSE;
+	private IScanFilter	m_scanFilter	= null;
+	private Boolean	m_bIsStreaming	= Boolean.FALSE;
+	private Boolean	m_bIsRawCopy	= Boolean.FALSE;
+	private String	m_strReportFile	= null;
+	private Boolean	m_bIsWriteParentScan	= Boolean.FALSE;
+	private Double	m_dParentScanWindow	= null;
 
 	public Double getMzValue() {
 		return m_dMzValue;
@@ -11,5 +23,118 @@ public class SpectraPickerSettings extends SpectraFilterSettings {
 	public void setMzValue(Double a_mzValue) {
 		this.m_dMzValue = a_mzValue;
 	}
-}
 
+	/**
+	 * Returns the targets to pick scans in a single read. The m/z value of the
+	 * settings is used as the only target if no target is given.
+	 * @return List of the targets, or null
+	 */
+	public List<PickerTarget> getTargets() {
+		return m_lTargets;
+	}
+
+	public void setTargets(List<PickerTarget> a_lTargets) {
+		this.m_lTargets = a_lTargets;
+	}
+
+	/**
+	 * Returns whether the scans are written into one file per target. Otherwise
+	 * the scans matched to any target are written into one file.
+	 * @return {@code true} if one file is written per target
+	 */
+	public Boolean getOutputPerTarget() {
+		return m_bIsOutputPerTarget;
+	}
+
+	public void setOutputPerTarget(Boolean a_bOutputPerTarget) {
+		this.m_bIsOutputPerTarget = a_bOutputPerTarget;
+	}
+
+	/**
+	 * Returns the additional filter of the MS2 scans, e.g. precursor m/z ranges,
+	 * charges or retention time ranges. The scans must pass both of this filter
+	 * and the targets.
+	 * @return IScanFilter, or null not to filter
+	 */
+	public IScanFilter getScanFilter() {
+		return m_scanFilter;
+	}
+
+	public void setScanFilter(IScanFilter a_scanFilter) {
+		this.m_scanFilter = a_scanFilter;
+	}
+
+	/**
+	 * Returns whether scans are read sequentially in a single pass. In this mode
+	 * each scan is parsed and decoded only once and the picked scans are written
+	 * as soon as the next MS1 scan is read.
+	 * @return {@code true} if the streaming mode is used
+	 */
+	public Boolean getStreaming() {
+		return m_bIsStreaming;
+	}
+
+	public void setStreaming(Boolean a_bStreaming) {
+		this.m_bIsStreaming = a_bStreaming;
+	}
+
+	/**
+	 * Returns whether the picked scans are copied from the input file as they are.
+	 * Only the scan numbers are rewritten, so the peaks keep their precision and
+	 * are not decoded for writing. Elements after the peaks in the scans are not
+	 * copied, and the sha1 tag is not written. Not used with the streaming mode
+	 * or the compression.
+	 * @return {@code true} if the scans are copied
+	 */
+	public Boolean getRawCopy() {
+		return m_bIsRawCopy;
+	}
+
+	public void setRawCopy(Boolean a_bRawCopy) {
+		this.m_bIsRawCopy = a_bRawCopy;
+	}
+
+	/**
+	 * Returns the path of the CSV file to report the hits of the scans instead
+	 * of writing the picked scans. The scans are only filtered, and the hits are
+	 * written with the scan number, the retention time, the precursor ion and
+	 * the most intense peak of each hit target. The scans are read with the
+	 * random access regardless of the streaming mode.
+	 * @return path of the report file, or null to write the picked scans
+	 */
+	public String getReportFile() {
+		return m_strReportFile;
+	}
+
+	public void setReportFile(String a_strReportFile) {
+		this.m_strReportFile = a_strReportFile;
+	}
+
+	/**
+	 * Returns whether the parent MS1 scan is written before its picked MS2 scans.
+	 * All MS1 scans are written, including those without picked MS2 scans.
+	 * @return {@code true} if the parent MS1 scans are written
+	 */
+	public Boolean getWriteParentScan() {
+		return m_bIsWriteParentScan;
+	}
+
+	public void setWriteParentScan(Boolean a_bWriteParentScan) {
+		this.m_bIsWriteParentScan = a_bWriteParentScan;
+	}
+
+	/**
+	 * Returns the half width of the m/z windows to crop the parent MS1 scans.
+	 * The peaks of a parent MS1 scan are kept only around the precursor m/z
+	 * values of its MS2 scans written into the same file, so an MS1 scan without
+	 * picked MS2 scans is written without peaks.
+	 * @return the half width in m/z, or null not to crop the parent MS1 scans
+	 */
+	public Double getParentScanWindow() {
+		return m_dParentScanWindow;
+	}
+
+	public void setParentScanWindow(Double a_dParentScanWindow) {
+		this.m_dParentScanWindow = a_dParentScanWindow;
+	}
+}
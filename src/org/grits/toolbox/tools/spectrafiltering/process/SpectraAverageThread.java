@@ -1,18 +1,27 @@
 package org.grits.toolbox.tools.spectrafiltering.process;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.Future;
 
 import org.grits.toolbox.tools.spectrafiltering.dialog.process.ProgressDialogThread;
+import org.grits.toolbox.tools.spectrafiltering.om.ScanHeaderTable;
 import org.grits.toolbox.tools.spectrafiltering.om.SpectraFilterSettings;
+import org.grits.toolbox.tools.spectrafiltering.utils.CentroidMergeWorkspace;
 import org.grits.toolbox.tools.spectrafiltering.utils.MassIntensityListUtils;
 import org.grits.toolbox.tools.spectrafiltering.utils.MzXMLWriter;
+import org.grits.toolbox.tools.spectrafiltering.utils.PrecursorGroupingEngine;
+import org.grits.toolbox.tools.spectrafiltering.utils.ProfileGridAccumulator;
+import org.grits.toolbox.tools.spectrafiltering.utils.ScanHeaderIndex;
 import org.systemsbiology.jrap.grits.stax.MSXMLParser;
 import org.systemsbiology.jrap.grits.stax.Scan;
 import org.systemsbiology.jrap.grits.stax.ScanHeader;
@@ -22,6 +31,14 @@ public class SpectraAverageThread extends ProgressDialogThread {
 	private SpectraFilterSettings m_filter;
 	private MSXMLParser m_parser;
 
+	/** Number of MS2 groups averaged ahead of the writing per thread */
+	private static final int REORDER_WINDOW_PER_THREAD = 4;
+	/** Number of the scans indexed between the checks of the cancellation */
+	private static final int CANCEL_CHECK_INTERVAL = 1024;
+
+	/** Whether the output file is being written, which is deleted if the task fails */
+	private boolean m_bOutputCreated = false;
+
 	public SpectraAverageThread(SpectraFilterSettings a_settings) {
 		this.m_filter = a_settings;
 		this.m_parser = new MSXMLParser(this.m_filter.getOpenFrom());
@@ -29,12 +46,15 @@ public class SpectraAverageThread extends ProgressDialogThread {
 
 	@Override
 	public boolean threadStart() throws Exception {
-		Map<Integer, List<ScanHeader>> mapMS1ToMS2ScanHeaders;
+		ScanHeaderTable headers;
 		List<Integer> lMS1Scans = new ArrayList<>();
 		try {
-			this.m_progressReporter.setProcessMessageLabel("Task 1 of 4: collect scan information");
-			mapMS1ToMS2ScanHeaders = collectScanInfo();
-			lMS1Scans.addAll(mapMS1ToMS2ScanHeaders.keySet());
+			this.m_progressReporter.setProcessMessageLabel("Task 1 of 3: collect scan information");
+			headers = collectScanInfo();
+			for (int i = 0; i < headers.size(); i++) {
+				if (headers.getMsLevel(i) == 1)
+					lMS1Scans.add(headers.getScanNum(i));
+			}
 			Collections.sort(lMS1Scans);
 		} catch (CancelProcessException e) {
 			return false;
@@ -42,38 +62,16 @@ public class SpectraAverageThread extends ProgressDialogThread {
 
 		Map<Integer, List<Integer>> mapFirstScanToSameScans;
 		try {
-			this.m_progressReporter.setProcessMessageLabel("Task 2 of 4: find redundant scans");
-			mapFirstScanToSameScans = findRedundantScans(mapMS1ToMS2ScanHeaders);
-			mapMS1ToMS2ScanHeaders.clear();
-		} catch (CancelProcessException e) {
-			return false;
-		}
-
-		List<Scan> lNewScans = new ArrayList<>();
-		try {
-			this.m_progressReporter.setProcessMessageLabel("Task 3 of 4: average scans");
-			this.m_progressReporter.setMax(mapFirstScanToSameScans.size()+1);
-			// Average MS1 scans
-			this.m_progressReporter.updateProgresBar("Averaging MS1 Scans ...");
-			Integer iFirstMS1Scan = lMS1Scans.get(0);
-			lMS1Scans.remove(iFirstMS1Scan);
-			Scan scan = averageScans(iFirstMS1Scan, lMS1Scans);
-			lNewScans.add(scan);
-			// Average MS2 scans
-			for (int iMS2 : mapFirstScanToSameScans.keySet()) {
-				this.m_progressReporter.updateProgresBar("Averaging MS2 Scans #" + iMS2);
-				List<Integer> lSameScans = mapFirstScanToSameScans.get(iMS2);
-				scan = averageScans(iMS2, lSameScans);
-				scan.header.setPrecursorScanNum(iFirstMS1Scan);
-				lNewScans.add(scan);
-			}
+			this.m_progressReporter.setProcessMessageLabel("Task 2 of 3: find redundant scans");
+			mapFirstScanToSameScans = findRedundantScans(headers);
+			headers = null;
 		} catch (CancelProcessException e) {
 			return false;
 		}
 
 		try {
-			this.m_progressReporter.setProcessMessageLabel("Task 4 of 4: create mzXML file");
-			this.outputMzXML(lNewScans);
+			this.m_progressReporter.setProcessMessageLabel("Task 3 of 3: average scans and create mzXML file");
+			this.outputMzXML(lMS1Scans, mapFirstScanToSameScans);
 		} catch (CancelProcessException e) {
 			return false;
 		}
@@ -82,122 +80,219 @@ public class SpectraAverageThread extends ProgressDialogThread {
 		return true;
 	}
 
-	private Map<Integer, List<ScanHeader>> collectScanInfo() throws CancelProcessException {
+	private ScanHeaderTable collectScanInfo() throws CancelProcessException {
 		int nMax = m_parser.getMaxScanNumber();
 
 		this.m_progressReporter.setMax(-1);
 		this.m_progressReporter.updateProgresBar("Collecting MS2 Scans ...");
-		// Collect ScanHeaders of MS2 scans and the relationships to the parent MS1
-		Map<Integer, List<ScanHeader>> mapMS1ToMS2 = new TreeMap<>();
+		// Collect header info of all scans
+		ScanHeaderTable headers = ScanHeaderIndex.loadIfEnabled(this.m_filter);
+		if (headers != null) {
+			this.m_progressReporter.updateProgresBar("Done!");
+			return headers;
+		}
+		headers = new ScanHeaderTable(nMax);
 		for (int i = 1; i <= nMax; i++) {
-			if (this.m_canceled)
+			if (this.isCanceled())
 				throw new CancelProcessException();
 
 			ScanHeader header1 = m_parser.rapHeader(i);
-			if (header1 == null || header1.getMsLevel() != 2 ) {
-				if (header1.getMsLevel() == 1 && !mapMS1ToMS2.containsKey(header1.getNum()))
-					mapMS1ToMS2.put(header1.getNum(), new ArrayList<>());
-				continue;
-			}
-			// Ignore if no peak in the scan
-			if ( header1.getPeaksCount() == 0 )
+			if (header1 == null)
 				continue;
-
-			mapMS1ToMS2.get(header1.getPrecursorScanNum()).add(header1);
+			headers.addScanHeader(header1);
 		}
+		ScanHeaderIndex.saveIfEnabled(this.m_filter, headers);
 
 		this.m_progressReporter.updateProgresBar("Done!");
 
-		return mapMS1ToMS2;
+		return headers;
 	}
 
-	private Map<Integer, List<Integer>> findRedundantScans(Map<Integer, List<ScanHeader>> mapMS1ToMS2Header)
+	private Map<Integer, List<Integer>> findRedundantScans(ScanHeaderTable headers)
 			throws CancelProcessException {
 
-		Map<Integer, List<Integer>> mapFirstScanToSameScans = new TreeMap<>();
-
-		// Filter scans
-		List<Integer> lMS1ScanNums = new ArrayList<>();
-		lMS1ScanNums.addAll(mapMS1ToMS2Header.keySet());
-
-		int nMS1 = lMS1ScanNums.size();
 		this.m_progressReporter.setMax(-1);
 
 		this.m_progressReporter.updateProgresBar("Comparing the precursor m/z values of MS2 scans ...");
 
-		// Seek the MS1 scans
-		Set<ScanHeader> setCheckedMS2Scans = new HashSet<>();
-		for (int i = 0; i < nMS1; i++) {
-			if (this.m_canceled)
-				throw new CancelProcessException();
+		// Sort MS2 scans having peaks with the parent MS1 scans, keeping the order in each MS1 scan
+		int nMS2 = 0;
+		long[] aKeys = new long[headers.size()];
+		for (int i = 0; i < headers.size(); i++) {
+			if (headers.getMsLevel(i) != 2 || headers.getPeaksCount(i) == 0)
+				continue;
+			aKeys[nMS2++] = ((long) headers.getPrecursorScanNum(i) << 32) | i;
+		}
+		Arrays.sort(aKeys, 0, nMS2);
 
-			int iMS1 = lMS1ScanNums.get(i);
+		// Index MS2 scans in order of the MS1 scans
+		PrecursorGroupingEngine engine = new PrecursorGroupingEngine(m_filter.getAccuracy(), m_filter.getPPM());
+		for (int k = 0; k < nMS2; k++) {
+			if (k % CANCEL_CHECK_INTERVAL == 0 && this.isCanceled())
+				throw new CancelProcessException();
 
-			// MS2 scans in a MS1 scan
-			for (ScanHeader header1 : mapMS1ToMS2Header.get(iMS1)) {
-				if (this.m_canceled)
-					throw new CancelProcessException();
+			int i = (int) aKeys[k];
+			engine.addScan(headers.getScanNum(i), headers.getPrecursorScanNum(i), headers.getActivationCode(i),
+					headers.getPrecursorCharge(i), headers.getPrecursorMz(i));
+		}
 
-				if (setCheckedMS2Scans.contains(header1))
-					continue;
+		Map<Integer, List<Integer>> mapFirstScanToSameScans = engine.groupScans();
+		if (this.isCanceled())
+			throw new CancelProcessException();
 
-				int iMS2 = header1.getNum();
+		this.m_progressReporter.updateProgresBar("Done!");
 
-				List<Integer> lSameScans = new ArrayList<>();
+		return mapFirstScanToSameScans;
+	}
 
-				// The other MS1 scan
-				for (int j = i + 1; j < nMS1; j++) {
-					if (this.m_canceled)
-						throw new CancelProcessException();
+	/**
+	 * Averages the groups of MS2 scans concurrently and writes the averaged scans
+	 * in order of the first scan numbers of the groups. Each worker thread reads
+	 * the scans with its own parser since MSXMLParser is not thread-safe. Only a
+	 * few groups per thread are averaged ahead of the writing, so that a bounded
+	 * number of averaged scans wait in memory.
+	 */
+	private void averageMS2Scans(Map<Integer, List<Integer>> mapFirstScanToSameScans, int iFirstMS1Scan,
+			MzXMLWriter writer) throws Exception {
+		int nThreads = this.getParallelism();
+		if (nThreads <= 1) {
+			for (int iMS2 : mapFirstScanToSameScans.keySet()) {
+				if (this.isCanceled())
+					throw new CancelProcessException();
+				this.m_progressReporter.updateProgress("Averaging MS2 Scans #", iMS2);
+				Scan scan = averageScans(m_parser, iMS2, mapFirstScanToSameScans.get(iMS2));
+				this.writeMS2Scan(writer, scan, iFirstMS1Scan);
+			}
+			return;
+		}
 
-					int jMS1 = lMS1ScanNums.get(j);
+		String strFile = this.m_filter.getOpenFrom();
+		ThreadLocal<MSXMLParser> parsers = ThreadLocal.withInitial(() -> new MSXMLParser(strFile));
+		int nWindow = nThreads * REORDER_WINDOW_PER_THREAD;
+		try (SubtaskExecutor subtasks = new SubtaskExecutor(nThreads, this.getCancelToken(), this.m_progressReporter)) {
+			Iterator<Integer> itFirstScans = mapFirstScanToSameScans.keySet().iterator();
+			Deque<Integer> dqFirstScans = new ArrayDeque<>();
+			Deque<Future<Scan>> dqFutures = new ArrayDeque<>();
+			while (itFirstScans.hasNext() || !dqFutures.isEmpty()) {
+				// Keep the window filled
+				while (itFirstScans.hasNext() && dqFutures.size() < nWindow) {
+					int iMS2 = itFirstScans.next();
+					List<Integer> lSameScans = mapFirstScanToSameScans.get(iMS2);
+					dqFirstScans.add(iMS2);
+					dqFutures.add(subtasks.submit(() -> averageScans(parsers.get(), iMS2, lSameScans)));
+				}
+				this.m_progressReporter.updateProgress("Averaging MS2 Scans #", dqFirstScans.poll());
+				this.writeMS2Scan(writer, subtasks.waitFor(dqFutures.poll()), iFirstMS1Scan);
+			}
+		}
+	}
 
-					// MS2 scans in the other MS1 scan
-					for (ScanHeader header2 : mapMS1ToMS2Header.get(jMS1)) {
-						if (this.m_canceled)
-							throw new CancelProcessException();
+	private void writeMS2Scan(MzXMLWriter writer, Scan scan, int iFirstMS1Scan) throws IOException {
+		scan.header.setPrecursorScanNum(iFirstMS1Scan);
+		writer.writeScan(scan);
+	}
 
-						if (setCheckedMS2Scans.contains(header2))
-							continue;
+	private boolean isSinglePassMerge() {
+		return this.m_filter.getSinglePassMerge() != null && this.m_filter.getSinglePassMerge();
+	}
 
-						// Compare the two headers
-						if (!this.isSameScan(header1, header2))
-							continue;
+	private int getParallelism() {
+		Integer iParallelism = this.m_filter.getParallelism();
+		if (iParallelism == null || iParallelism < 1)
+			return Runtime.getRuntime().availableProcessors();
+		return iParallelism;
+	}
 
-						setCheckedMS2Scans.add(header2);
+	/**
+	 * Averages a group of MS2 scans. The cancellation is checked before each
+	 * group is averaged, since the groups are small.
+	 * <p>
+	 * The scans are added to the first scan in turn, in profile mode only if both
+	 * of the first scan and the added scan are in profile mode. If the single pass
+	 * merge is enabled, the scans are merged at once instead, which gives close
+	 * but not the same peaks (see
+	 * {@link MassIntensityListUtils#mergeMassIntensityListsForCentroid(List, double, boolean)}).
+	 */
+	private Scan averageScans(MSXMLParser parser, int iFirstScanId, List<Integer> lScanIds) {
+		if (lScanIds == null || lScanIds.isEmpty())
+			return parser.rap(iFirstScanId);
 
-						lSameScans.add(header2.getNum());
-						break;
-					}
-				}
+		Scan scan0 = parser.rap(iFirstScanId);
 
-				mapFirstScanToSameScans.put(iMS2, lSameScans);
-			}
-		}
-		this.m_progressReporter.updateProgresBar("Done!");
+		// Get header info
+		float fTotIonCurrent = scan0.header.getTotIonCurrent();
+		double[][] dPrecursorMassIntenList = new double[2][lScanIds.size() + 1];
+		dPrecursorMassIntenList[0][0] = scan0.header.getPrecursorMz();
+		dPrecursorMassIntenList[1][0] = scan0.header.getPrecursorIntensity();
+		float fStartMz = scan0.header.getStartMz();
+		float fEndMz = scan0.header.getEndMz();
 
-		return mapFirstScanToSameScans;
-	}
+		// Add the peaks of the scans in turn choosing the mode for each pair, or
+		// collect them to merge at once in the single pass mode
+		boolean bSinglePass = this.isSinglePassMerge();
+		List<double[][]> lMassIntenLists = new ArrayList<>();
+		double[][] dMassIntenList = scan0.getMassIntensityList();
+		boolean bIsProfile = (scan0.header.getCentroided() != 1);
+		if (bSinglePass)
+			lMassIntenLists.add(dMassIntenList);
+		CentroidMergeWorkspace workspace = null;
 
-	private boolean isSameScan(ScanHeader header1, ScanHeader header2) {
+		int j = 0;
+		for (int iScanId : lScanIds) {
+			Scan scan = parser.rap(iScanId);
 
-		// Compare activation method
-		if (!header1.getActivationMethod().equals(header2.getActivationMethod()))
-			return false;
+			// Collect precursor info
+			j++;
+			dPrecursorMassIntenList[0][j] = scan.header.getPrecursorMz();
+			dPrecursorMassIntenList[1][j] = scan.header.getPrecursorIntensity();
+			// Update start and end m/z values which are the instrumental setting
+			fStartMz = Math.min(fStartMz, scan.header.getStartMz());
+			fEndMz = Math.max(fEndMz, scan.header.getEndMz());
+			// Update total ion current
+			fTotIonCurrent += scan0.header.getTotIonCurrent();
 
-		// Compare charge
-		if (header1.getPrecursorCharge() != header2.getPrecursorCharge())
-			return false;
+			double[][] dMassIntenListToAdd = scan.getMassIntensityList();
+			if (bSinglePass) {
+				lMassIntenLists.add(dMassIntenListToAdd);
+				if (scan.header.getCentroided() == 1)
+					bIsProfile = false;
+			} else if (scan0.header.getCentroided() != 1 && scan.header.getCentroided() != 1) {
+				dMassIntenList = MassIntensityListUtils.addMassIntensityListForProfile(dMassIntenList,
+						dMassIntenListToAdd);
+			} else {
+				if (workspace == null)
+					workspace = new CentroidMergeWorkspace();
+				MassIntensityListUtils.addMassIntensityListForCentroid(dMassIntenList[0], dMassIntenList[1],
+						dMassIntenList[0].length, dMassIntenListToAdd[0], dMassIntenListToAdd[1],
+						dMassIntenListToAdd[0].length, m_filter.getAccuracy(), m_filter.getPPM(), workspace);
+				dMassIntenList = workspace.toMassIntensityList();
+			}
+		}
 
-		// Compare precursor m/z values with accuracy
-		if (!MassIntensityListUtils.isSamePeaks(header1.getPrecursorMz(), header2.getPrecursorMz(),
-				m_filter.getAccuracy(), m_filter.getPPM()))
-			return false;
+		if (bSinglePass) {
+			if (bIsProfile)
+				dMassIntenList = MassIntensityListUtils.mergeMassIntensityListsForProfile(lMassIntenLists);
+			else
+				dMassIntenList = MassIntensityListUtils.mergeMassIntensityListsForCentroid(lMassIntenLists,
+						m_filter.getAccuracy(), m_filter.getPPM());
+			lMassIntenLists.clear();
+		}
 
-		return true;
+		return createAveragedScan(scan0, dMassIntenList, j + 1, fTotIonCurrent, dPrecursorMassIntenList, fStartMz,
+				fEndMz);
 	}
 
-	private Scan averageScans(int iFirstScanId, List<Integer> lScanIds) throws CancelProcessException {
+	/**
+	 * Averages MS1 scans by accumulating them one by one, so that the scans are
+	 * not held in memory. The scans in profile mode are resampled onto a fixed
+	 * m/z grid whose interval is the sampling interval of the first scan (see
+	 * {@link ProfileGridAccumulator}), and the scans in centroid mode are merged
+	 * into the list of the preceding scans. The mode is determined by the first
+	 * scan. If a scan is too far out of the grid, the accumulated list and the
+	 * rest of the scans are added in turn as
+	 * {@link MassIntensityListUtils#addMassIntensityListForProfile(double[][], double[][])}.
+	 */
+	private Scan averageMS1Scans(int iFirstScanId, List<Integer> lScanIds) throws CancelProcessException {
 		if (lScanIds == null || lScanIds.isEmpty())
 			return m_parser.rap(iFirstScanId);
 
@@ -212,10 +307,21 @@ public class SpectraAverageThread extends ProgressDialogThread {
 		float fEndMz = scan0.header.getEndMz();
 
 		double[][] dMassIntenList = scan0.getMassIntensityList();
+		boolean bIsProfile = (scan0.header.getCentroided() != 1);
+		ProfileGridAccumulator accumulator = null;
+		CentroidMergeWorkspace workspace = null;
+		if (bIsProfile) {
+			accumulator = ProfileGridAccumulator.create(dMassIntenList, fStartMz, fEndMz);
+			// Merge sequentially if no grid is available
+			if (accumulator != null)
+				accumulator.addMassIntensityList(dMassIntenList);
+		} else {
+			workspace = new CentroidMergeWorkspace();
+		}
 
 		int j = 0;
 		for (int iScanId : lScanIds) {
-			if (this.m_canceled)
+			if (this.isCanceled())
 				throw new CancelProcessException();
 
 			Scan scan = m_parser.rap(iScanId);
@@ -230,19 +336,49 @@ public class SpectraAverageThread extends ProgressDialogThread {
 			// Update total ion current
 			fTotIonCurrent += scan0.header.getTotIonCurrent();
 
-			if (scan0.header.getCentroided() != 1 && scan.header.getCentroided() != 1)
+			double[][] dMassIntenListToAdd = scan.getMassIntensityList();
+			if (accumulator != null) {
+				if (accumulator.addMassIntensityList(dMassIntenListToAdd))
+					continue;
+				// Add the rest sequentially if the grid would be too large for the scan
+				dMassIntenList = accumulator.getMassIntensityList();
+				accumulator = null;
+			}
+			if (bIsProfile) {
 				dMassIntenList = MassIntensityListUtils.addMassIntensityListForProfile(dMassIntenList,
-						scan.getMassIntensityList());
-			else
-				dMassIntenList = MassIntensityListUtils.addMassIntensityListForCentroid(dMassIntenList,
-						scan.getMassIntensityList(), m_filter.getAccuracy(), m_filter.getPPM());
+						dMassIntenListToAdd);
+			} else if (j == 1) {
+				MassIntensityListUtils.addMassIntensityListForCentroid(dMassIntenList[0], dMassIntenList[1],
+						dMassIntenList[0].length, dMassIntenListToAdd[0], dMassIntenListToAdd[1],
+						dMassIntenListToAdd[0].length, m_filter.getAccuracy(), m_filter.getPPM(), workspace);
+			} else {
+				MassIntensityListUtils.addMassIntensityListForCentroid(workspace.getMasses(),
+						workspace.getIntensities(), workspace.getSize(), dMassIntenListToAdd[0],
+						dMassIntenListToAdd[1], dMassIntenListToAdd[0].length, m_filter.getAccuracy(),
+						m_filter.getPPM(), workspace);
+			}
 		}
 
-		if (this.m_canceled)
+		if (this.isCanceled())
 			throw new CancelProcessException();
 
+		if (accumulator != null)
+			dMassIntenList = accumulator.getMassIntensityList();
+		else if (!bIsProfile)
+			dMassIntenList = workspace.toMassIntensityList();
+
+		return createAveragedScan(scan0, dMassIntenList, j + 1, fTotIonCurrent, dPrecursorMassIntenList, fStartMz,
+				fEndMz);
+	}
+
+	/**
+	 * Creates an averaged scan from the merged m/z - intensity list and the
+	 * header info summed up over the scans. The header of the first scan is
+	 * reused for the new scan.
+	 */
+	private Scan createAveragedScan(Scan scan0, double[][] dMassIntenList, int nScans, float fTotIonCurrent,
+			double[][] dPrecursorMassIntenList, float fStartMz, float fEndMz) {
 		int nMass = dMassIntenList[0].length;
-		int nScans = j + 1;
 		// Calculate new info for the header
 		float dBaseInten = 0;
 		float dBaseMz = 0;
@@ -274,8 +410,9 @@ public class SpectraAverageThread extends ProgressDialogThread {
 		headerNew.setPeaksCount(nMass);
 		headerNew.setStartMz(fStartMz);
 		headerNew.setEndMz(fEndMz);
-		headerNew.setLowMz((float) dMassIntenList[0][0]);
-		headerNew.setHighMz((float) dMassIntenList[0][nMass - 1]);
+		// No peaks are left if all the scans are empty
+		headerNew.setLowMz((nMass == 0) ? -1 : (float) dMassIntenList[0][0]);
+		headerNew.setHighMz((nMass == 0) ? -1 : (float) dMassIntenList[0][nMass - 1]);
 		headerNew.setBasePeakMz(dBaseMz);
 		headerNew.setBasePeakIntensity(dBaseInten);
 		headerNew.setTotIonCurrent(fTotIonCurrent);
@@ -290,43 +427,66 @@ public class SpectraAverageThread extends ProgressDialogThread {
 		return scanNew;
 	}
 
-	private void outputMzXML(List<Scan> lScans) throws CancelProcessException, IOException {
-		int nScans = lScans.size();
-		this.m_progressReporter.setMax(nScans + 3);
+	/**
+	 * Averages the scans and writes each of them into the mzXML file as soon as
+	 * it is averaged, so that the averaged scans are not held in memory. The
+	 * output file is deleted by {@link #cleanUp()} if the process is canceled
+	 * or fails.
+	 */
+	private void outputMzXML(List<Integer> lMS1Scans, Map<Integer, List<Integer>> mapFirstScanToSameScans)
+			throws Exception {
+		int nScans = mapFirstScanToSameScans.size() + 1;
+		this.m_progressReporter.setMax(nScans + 2);
 
 		// Create the MzXML writer
 		MzXMLWriter writer = new MzXMLWriter();
+		writer.setThreads(this.getParallelism());
+		if (this.m_filter.getCompressionLevel() != null)
+			writer.setCompression(this.m_filter.getCompressionLevel());
 
 		// Create mzXML file
+		this.m_bOutputCreated = true;
 		writer.createMZXML(this.m_filter.getSaveLocation());
-
-		if (this.m_canceled)
-			throw new CancelProcessException();
-
-		String strStartTime = lScans.get(0).header.getRetentionTime();
-		String strEndTime = lScans.get(nScans - 1).header.getRetentionTime();
-		writer.setMsRun(nScans, strStartTime, strEndTime);
-
-		// Write Header
-		this.m_progressReporter.updateProgresBar("Writing header");
-		writer.write(writer.getHeader());
-		// writer.writeHeader();
-
-		for (Scan scan : lScans) {
-			if (this.m_canceled) {
-				writer.closeFile();
-				throw new CancelProcessException();
+		try {
+			// Average MS1 scans
+			this.m_progressReporter.updateProgresBar("Averaging MS1 Scans ...");
+			Integer iFirstMS1Scan = lMS1Scans.get(0);
+			lMS1Scans.remove(iFirstMS1Scan);
+			Scan scanMS1 = averageMS1Scans(iFirstMS1Scan, lMS1Scans);
+
+			// The last averaged scan has the header of the first scan in the last group
+			String strStartTime = scanMS1.header.getRetentionTime();
+			String strEndTime = strStartTime;
+			if (!mapFirstScanToSameScans.isEmpty()) {
+				int iLastMS2 = Collections.max(mapFirstScanToSameScans.keySet());
+				strEndTime = m_parser.rapHeader(iLastMS2).getRetentionTime();
 			}
-			this.m_progressReporter.updateProgresBar("Writing scan #" + scan.getHeader().getNum());
-			writer.write(writer.getScan(scan));
+			writer.setMsRun(nScans, strStartTime, strEndTime);
+
+			// Write Header
+			this.m_progressReporter.updateProgresBar("Writing header");
+			writer.writeHeader();
+			writer.writeScan(scanMS1);
+			scanMS1 = null;
+
+			// Average and write MS2 scans
+			this.averageMS2Scans(mapFirstScanToSameScans, iFirstMS1Scan, writer);
+
+			this.m_progressReporter.updateProgresBar("Writing footer");
+			writer.writeFooter();
+		} finally {
+			// close the file
+			writer.closeFile();
 		}
-
-		this.m_progressReporter.updateProgresBar("Writing footer");
-		writer.write(writer.getFooter());
-		// writer.writeFooter();
-
-		// close the file
-		writer.closeFile();
 		this.m_progressReporter.updateProgresBar("Done!");
 	}
+
+	/**
+	 * Deletes the output file being written when the task is canceled or fails.
+	 */
+	@Override
+	protected void cleanUp() throws IOException {
+		if (this.m_bOutputCreated)
+			Files.deleteIfExists(Paths.get(this.m_filter.getSaveLocation()));
+	}
 }
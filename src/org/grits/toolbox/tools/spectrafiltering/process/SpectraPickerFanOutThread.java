@@ -0,0 +1,177 @@
+package org.grits.toolbox.tools.spectrafiltering.process;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.grits.toolbox.tools.spectrafiltering.dialog.process.ProgressDialogThread;
+import org.grits.toolbox.tools.spectrafiltering.om.SpectraPickerSettings;
+import org.grits.toolbox.tools.spectrafiltering.utils.MzXMLFormatException;
+import org.systemsbiology.jrap.grits.stax.MSXMLSequentialParser;
+import org.systemsbiology.jrap.grits.stax.Scan;
+
+/**
+ * Picks scans of one mzXML file with several settings in a single read. Each
+ * scan is read and decoded once, and all settings are evaluated against the
+ * shared peaks and written into their own output files at once.
+ * <p>
+ * The settings are picked in the streaming mode regardless of their streaming
+ * flag. If the file has no scan index, each setting is picked with the random
+ * access one after another.
+ */
+public class SpectraPickerFanOutThread extends ProgressDialogThread {
+
+	private String m_strOpenFrom;
+	private List<SpectraPickerThread> m_lPickers = new ArrayList<>();
+	/** Whether any scan is written for each setting */
+	private List<Boolean> m_lResults = new ArrayList<>();
+
+	/**
+	 * Constructor.
+	 * @param a_lSettings List of the settings, which must have the same input
+	 *        file and different output files, and no report file
+	 */
+	public SpectraPickerFanOutThread(List<SpectraPickerSettings> a_lSettings) {
+		if ( a_lSettings.isEmpty() )
+			throw new IllegalArgumentException("No settings are given");
+		this.m_strOpenFrom = a_lSettings.get(0).getOpenFrom();
+		Set<String> setOutputFiles = new HashSet<>();
+		for ( SpectraPickerSettings settings : a_lSettings ) {
+			if ( !this.m_strOpenFrom.equals(settings.getOpenFrom()) )
+				throw new IllegalArgumentException("Settings must have the same input file: " + settings.getOpenFrom());
+			if ( settings.getReportFile() != null )
+				throw new IllegalArgumentException("Hit report is not supported for several settings");
+			SpectraPickerThread picker = new SpectraPickerThread(settings);
+			// The pickers are canceled with this task
+			picker.setCancelToken(this.getCancelToken());
+			for ( String strFile : picker.getOutputFiles() ) {
+				if ( !setOutputFiles.add(strFile) )
+					throw new IllegalArgumentException("Settings must have different output files: " + strFile);
+			}
+			this.m_lPickers.add(picker);
+			this.m_lResults.add(Boolean.FALSE);
+		}
+	}
+
+	/**
+	 * Returns whether any scan is written for each setting after the process.
+	 * @return List of the results in order of the settings
+	 */
+	public List<Boolean> getResults() {
+		return this.m_lResults;
+	}
+
+	@Override
+	public boolean threadStart() throws Exception {
+		for ( SpectraPickerThread picker : this.m_lPickers )
+			picker.setDialog(this.m_progressReporter);
+
+		this.m_progressReporter.setProcessMessageLabel(
+				"Filter scans and create filtered mzXML files for " + this.m_lPickers.size() + " settings");
+		try {
+			if ( this.pickScansSequentially() )
+				return true;
+			this.m_progressReporter.setDescriptionText("No scan is matched in " + this.m_strOpenFrom);
+		} catch (MzXMLFormatException e) {
+			// The sequential parser needs the scan index, use random access for each setting instead
+			return this.pickScansRandomAccess();
+		} catch (XMLStreamException e) {
+			this.m_progressReporter.setDescriptionText(
+					"Error reading scans from " + this.m_strOpenFrom + "\n" + e.getMessage());
+		} catch (IOException e) {
+			this.m_progressReporter.setDescriptionText("Error when writting the new mzXML file: " + e.getMessage());
+		} catch (CancelProcessException e) {
+		}
+		return false;
+	}
+
+	@Override
+	protected void cleanUp() throws IOException {
+		for ( SpectraPickerThread picker : this.m_lPickers )
+			picker.cleanUp();
+	}
+
+	private boolean pickScansSequentially()
+			throws IOException, XMLStreamException, CancelProcessException, MzXMLFormatException {
+		MSXMLSequentialParser parser = SpectraPickerThread.openSequentialParser(this.m_strOpenFrom);
+		List<List<SpectraPickerThread.PickerOutput>> lOutputs = new ArrayList<>();
+		for ( SpectraPickerThread picker : this.m_lPickers )
+			lOutputs.add(picker.createOutputs());
+
+		try {
+			int nMax = parser.getMaxScanNumber();
+			this.m_progressReporter.setMax(nMax);
+			int nCheckPoint = 1;
+			if ( nMax > 1000 ) {
+				nCheckPoint = nMax / 1000;
+				this.m_progressReporter.setMax(1000, nCheckPoint);
+			}
+
+			// Pending MS1 scan, the MS2 scans picked so far are kept by each setting
+			Scan scanMS1 = null;
+			int nRead = 0;
+			int nPickers = this.m_lPickers.size();
+			while ( parser.hasNextScan() ) {
+				if (this.isCanceled())
+					throw new CancelProcessException();
+
+				Scan scan = parser.getNextScan();
+				if ( ++nRead % nCheckPoint == 0 )
+					this.m_progressReporter.updateProgress("Reading Scan #", nRead);
+				if ( scan == null )
+					continue;
+
+				// Writes the pending scans of all settings at next MS1 scan
+				if ( scan.getHeader().getMsLevel() == 1 ) {
+					for ( int i = 0; i < nPickers; i++ )
+						this.m_lPickers.get(i).writePickedScans(lOutputs.get(i), scanMS1);
+					scanMS1 = scan;
+					continue;
+				}
+				for ( int i = 0; i < nPickers; i++ )
+					this.m_lPickers.get(i).pickScan(scan, scanMS1, lOutputs.get(i));
+			}
+
+			boolean bWritten = false;
+			for ( int i = 0; i < nPickers; i++ ) {
+				SpectraPickerThread picker = this.m_lPickers.get(i);
+				picker.writePickedScans(lOutputs.get(i), scanMS1);
+				boolean bResult = picker.finishOutputs(lOutputs.get(i));
+				this.m_lResults.set(i, bResult);
+				bWritten |= bResult;
+			}
+			if ( !bWritten )
+				return false;
+			this.m_progressReporter.updateProgresBar("Done!");
+		} finally {
+			parser.close();
+			for ( List<SpectraPickerThread.PickerOutput> lPickerOutputs : lOutputs )
+				SpectraPickerThread.closeOutputs(lPickerOutputs);
+		}
+		return true;
+	}
+
+	/**
+	 * Picks scans with each setting one after another by the random access.
+	 * @return {@code true} if any setting is picked successfully
+	 * @throws Exception
+	 */
+	private boolean pickScansRandomAccess() throws Exception {
+		boolean bWritten = false;
+		for ( int i = 0; i < this.m_lPickers.size(); i++ ) {
+			if (this.isCanceled())
+				return false;
+			SpectraPickerThread picker = this.m_lPickers.get(i);
+			boolean bResult = picker.threadStartRandomAccess();
+			if ( !bResult )
+				picker.cleanUp();
+			this.m_lResults.set(i, bResult);
+			bWritten |= bResult;
+		}
+		return bWritten;
+	}
+}
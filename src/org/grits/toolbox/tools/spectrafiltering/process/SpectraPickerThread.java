@@ -1,36 +1,207 @@
 package org.grits.toolbox.tools.spectrafiltering.process;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.function.ObjIntConsumer;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.grits.toolbox.tools.spectrafiltering.dialog.process.ProgressDialogThread;
+import org.grits.toolbox.tools.spectrafiltering.filter.FilterStatistics;
+import org.grits.toolbox.tools.spectrafiltering.filter.ScanContext;
+import org.grits.toolbox.tools.spectrafiltering.filter.ScanFilterPlanner;
+import org.grits.toolbox.tools.spectrafiltering.om.PickerTarget;
+import org.grits.toolbox.tools.spectrafiltering.om.ScanHeaderTable;
 import org.grits.toolbox.tools.spectrafiltering.om.SpectraPickerSettings;
 import org.grits.toolbox.tools.spectrafiltering.utils.MzXMLFormatException;
 import org.grits.toolbox.tools.spectrafiltering.utils.MzXMLWriter;
+import org.grits.toolbox.tools.spectrafiltering.utils.PeakTargetMatcher;
+import org.grits.toolbox.tools.spectrafiltering.utils.PickerReportWriter;
+import org.grits.toolbox.tools.spectrafiltering.utils.RawScanElement;
+import org.grits.toolbox.tools.spectrafiltering.utils.ScanCropper;
+import org.grits.toolbox.tools.spectrafiltering.utils.ScanHeaderIndex;
 import org.systemsbiology.jrap.grits.stax.MSXMLParser;
+import org.systemsbiology.jrap.grits.stax.MSXMLSequentialParser;
 import org.systemsbiology.jrap.grits.stax.Scan;
 import org.systemsbiology.jrap.grits.stax.ScanHeader;
 
 public class SpectraPickerThread extends ProgressDialogThread {
 
 	private SpectraPickerSettings m_filter;
-	private MSXMLParser m_parser;
+	/** Parser for the random access, which is opened when needed */
+	private MSXMLParser m_parser = null;
+	private PeakTargetMatcher m_matcher;
+	/** Plan of the additional scan filter, or null */
+	private ScanFilterPlanner m_planner = null;
+	/** Plans of the scan filter used on the worker threads */
+	private List<ScanFilterPlanner> m_lWorkerPlanners = new ArrayList<>();
+	/** Targets with all values set */
+	private List<PickerTarget> m_lTargets;
+	/** Writer of the hit report, or null if the picked scans are written */
+	private PickerReportWriter m_report = null;
+	/** Output files in order of the targets, or the only file of all targets */
+	private List<String> m_lOutputFiles = new ArrayList<>();
+	/** Whether the output files are being written, which are deleted if the task fails */
+	private boolean m_bOutputsCreated = false;
+
+	/** Headers of the scans read for the random access */
+	private ScanHeaderTable m_headers = null;
+	/** Cropper of the parent MS1 scans, or null not to crop */
+	private ScanCropper m_cropper = null;
+
+	/** Number of the chunks of the scans filtered in parallel per thread */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/** Scans filtered in a chunk */
+	private static class FilteredChunk {
+		private List<LinkedList<Integer>> lFilteredScans;
+		private PickerReportWriter report = null;
+	}
 
-	private boolean m_writeParentScan = false;
+	/** Output of the scans picked in the streaming mode */
+	static class PickerOutput {
+		private String strFile;
+		private MzXMLWriter writer = null;
+		private List<Scan> lSubScans = new ArrayList<>();
+		private List<String> lRetentionTimes = new ArrayList<>();
+		private int nScans = 0;
+	}
 
 	public SpectraPickerThread(SpectraPickerSettings a_filter) {
 		this.m_filter = a_filter;
-		this.m_parser = new MSXMLParser(this.m_filter.getOpenFrom());
+
+		List<PickerTarget> lTargets = this.getTargets();
+		this.m_lTargets = lTargets;
+		this.m_matcher = new PeakTargetMatcher(lTargets);
+		if ( this.m_filter.getScanFilter() != null )
+			this.m_planner = new ScanFilterPlanner(this.m_filter.getScanFilter());
+		if ( this.isWriteParentScan() && this.m_filter.getParentScanWindow() != null )
+			this.m_cropper = new ScanCropper(this.m_filter.getParentScanWindow());
+		if ( this.isOutputPerTarget() ) {
+			for ( PickerTarget target : lTargets )
+				this.m_lOutputFiles.add(getOutputFile(this.m_filter.getSaveLocation(), target));
+		} else {
+			this.m_lOutputFiles.add(this.m_filter.getSaveLocation());
+		}
+	}
+
+	/**
+	 * Returns the parser for the random access, which is not opened in the
+	 * streaming mode.
+	 */
+	private MSXMLParser getParser() {
+		if ( this.m_parser == null )
+			this.m_parser = new MSXMLParser(this.m_filter.getOpenFrom());
+		return this.m_parser;
+	}
+
+	/**
+	 * Returns the targets with the values not set taken from the settings. The
+	 * m/z value of the settings is the only target if no target is given.
+	 * @return List of the targets
+	 */
+	private List<PickerTarget> getTargets() {
+		List<PickerTarget> lTargets = new ArrayList<>();
+		if ( this.m_filter.getTargets() == null || this.m_filter.getTargets().isEmpty() ) {
+			lTargets.add(this.createTarget(new PickerTarget(null, this.m_filter.getMzValue())));
+			return lTargets;
+		}
+		for ( PickerTarget target : this.m_filter.getTargets() )
+			lTargets.add(this.createTarget(target));
+		return lTargets;
+	}
+
+	private PickerTarget createTarget(PickerTarget a_target) {
+		PickerTarget target = new PickerTarget(a_target.getName(), a_target.getMzValue());
+		target.setAccuracy( (a_target.getAccuracy() != null)?
+				a_target.getAccuracy() : this.m_filter.getAccuracy() );
+		target.setPPM( (a_target.getPPM() != null)? a_target.getPPM() : this.m_filter.getPPM() );
+		target.setCutOffValue( (a_target.getCutOffValue() != null)?
+				a_target.getCutOffValue() : this.m_filter.getCutOffValue() );
+		target.setPercentage( (a_target.getPercentage() != null)?
+				a_target.getPercentage() : this.m_filter.getPercentage() );
+		return target;
+	}
+
+	/**
+	 * Returns the paths of the output files.
+	 * @return List of the output files in order of the targets, or the only file
+	 *         of all targets
+	 */
+	List<String> getOutputFiles() {
+		return this.m_lOutputFiles;
+	}
+
+	/**
+	 * Returns the counters of the additional scan filter.
+	 * @return List of FilterStatistics, empty if no scan filter is given
+	 */
+	public List<FilterStatistics> getScanFilterStatistics() {
+		if ( this.m_planner == null )
+			return new ArrayList<>();
+		if ( this.m_lWorkerPlanners.isEmpty() )
+			return this.m_planner.getStatistics();
+		// Sums the counters of the plans, whose filters are in the same order
+		List<FilterStatistics> lStatistics = new ArrayList<>();
+		for ( FilterStatistics statistics : this.m_planner.getStatistics() ) {
+			FilterStatistics sum = new FilterStatistics(statistics.getName());
+			sum.add(statistics);
+			lStatistics.add(sum);
+		}
+		for ( ScanFilterPlanner planner : this.m_lWorkerPlanners ) {
+			List<FilterStatistics> lWorkerStatistics = planner.getStatistics();
+			for ( int i = 0; i < lStatistics.size(); i++ )
+				lStatistics.get(i).add(lWorkerStatistics.get(i));
+		}
+		return lStatistics;
+	}
+
+	private boolean isWriteParentScan() {
+		return this.m_filter.getWriteParentScan() != null && this.m_filter.getWriteParentScan();
+	}
+
+	private boolean isOutputPerTarget() {
+		return this.m_filter.getOutputPerTarget() != null && this.m_filter.getOutputPerTarget();
+	}
+
+	/**
+	 * Returns the path of the output file for the target, which is the save
+	 * location with the name or the m/z value of the target before the extension.
+	 */
+	private static String getOutputFile(String a_strSaveLocation, PickerTarget a_target) {
+		String strName = a_target.getName();
+		if ( strName == null || strName.isEmpty() )
+			strName = String.valueOf(a_target.getMzValue());
+		strName = strName.replaceAll("[^A-Za-z0-9._-]", "_");
+
+		int iExtension = a_strSaveLocation.lastIndexOf('.');
+		int iSeparator = Math.max(a_strSaveLocation.lastIndexOf('/'), a_strSaveLocation.lastIndexOf('\\'));
+		if ( iExtension <= iSeparator )
+			return a_strSaveLocation + "_" + strName;
+		return a_strSaveLocation.substring(0, iExtension) + "_" + strName + a_strSaveLocation.substring(iExtension);
 	}
 
 	@Override
 	public boolean threadStart() throws Exception {
+		if ( this.m_filter.getReportFile() != null )
+			return this.threadStartReport();
+		if ( this.m_filter.getStreaming() != null && this.m_filter.getStreaming() )
+			return this.threadStartStreaming();
+		return this.threadStartRandomAccess();
+	}
 
-		LinkedList<Integer> lFilteredScans;
+	boolean threadStartRandomAccess() throws Exception {
+		List<LinkedList<Integer>> lFilteredScans;
 		this.m_progressReporter.setProcessMessageLabel("Task 1 of 2: Filter scans");
 		try {
 			lFilteredScans = this.filterScans();
@@ -42,190 +213,741 @@ public class SpectraPickerThread extends ProgressDialogThread {
 			return false;
 		}
 
-				this.m_progressReporter.setProcessMessageLabel("Task 2 of 2: Create filtered mzXML file");
+		this.m_progressReporter.setProcessMessageLabel("Task 2 of 2: Create filtered mzXML file");
 		try {
-			this.writeMzXML(lFilteredScans);
+			if ( !this.writeMzXML(lFilteredScans) ) {
+				this.m_progressReporter.setDescriptionText("No scan is matched in " + this.m_filter.getOpenFrom());
+				return false;
+			}
 		} catch (IOException e) {
 			this.m_progressReporter.setDescriptionText("Error when writting the new mzXML file: " + e.getMessage());
-			this.deleteMzXMLFile();
 			return false;
 		} catch (CancelProcessException e) {
-			this.deleteMzXMLFile();
 			return false;
 		}
 
 		return true;
 	}
 
-	private LinkedList<Integer> filterScans() throws CancelProcessException {
-		LinkedList<Integer> lFilteredScans = new LinkedList<>();
+	/**
+	 * Filters the scans and writes the hits into the report file without
+	 * writing the picked scans. The statistics of the hits are shown as the
+	 * description.
+	 * @return {@code true} if the report is written successfully
+	 * @throws Exception
+	 */
+	private boolean threadStartReport() throws Exception {
+		String strReportFile = this.m_filter.getReportFile();
+		this.m_progressReporter.setProcessMessageLabel("Filter scans and write hit report");
+		try {
+			this.m_report = new PickerReportWriter(strReportFile, this.m_lTargets);
+			this.filterScans();
+			this.m_report.close();
+		} catch (CancelProcessException e) {
+			return false;
+		} catch (IOException e) {
+			this.m_progressReporter.setDescriptionText("Error when writting the hit report: " + e.getMessage());
+			return false;
+		} catch (Exception e) {
+			this.m_progressReporter.setDescriptionText(
+					"Error reading scans from " + this.m_filter.getOpenFrom() + "\n" + e.getMessage());
+			return false;
+		}
+		this.m_progressReporter.setDescriptionText(this.m_report.getStatistics());
+		this.m_progressReporter.updateProgresBar("Done!");
+		return true;
+	}
 
-		// Filter scans
-		int nMax = m_parser.getMaxScanNumber();
-		this.m_progressReporter.setMax(nMax);
+	/**
+	 * Picks scans in a single pass over the file. Each scan is read once, and
+	 * the picked scans are written when the next MS1 scan is read.
+	 * @return {@code true} if the picked scans are written successfully
+	 * @throws Exception
+	 */
+	private boolean threadStartStreaming() throws Exception {
+		this.m_progressReporter.setProcessMessageLabel("Filter scans and create filtered mzXML file");
+		try {
+			if ( this.pickScansSequentially() )
+				return true;
+			this.m_progressReporter.setDescriptionText("No scan is matched in " + this.m_filter.getOpenFrom());
+		} catch (MzXMLFormatException e) {
+			// The sequential parser needs the scan index, use random access instead
+			return this.threadStartRandomAccess();
+		} catch (XMLStreamException e) {
+			this.m_progressReporter.setDescriptionText(
+					"Error reading scans from " + this.m_filter.getOpenFrom() + "\n" + e.getMessage());
+		} catch (IOException e) {
+			this.m_progressReporter.setDescriptionText("Error when writting the new mzXML file: " + e.getMessage());
+		} catch (CancelProcessException e) {
+		}
+		return false;
+	}
+
+	private boolean pickScansSequentially()
+			throws IOException, XMLStreamException, CancelProcessException, MzXMLFormatException {
+		MSXMLSequentialParser parser = openSequentialParser(this.m_filter.getOpenFrom());
+		List<PickerOutput> lOutputs = this.createOutputs();
+		try {
+			int nMax = parser.getMaxScanNumber();
+			this.m_progressReporter.setMax(nMax);
+			int nCheckPoint = 1;
+			if ( nMax > 1000 ) {
+				nCheckPoint = nMax / 1000;
+				this.m_progressReporter.setMax(1000, nCheckPoint);
+			}
+
+			// Pending MS1 scan and its MS2 scans picked so far
+			Scan scanMS1 = null;
+			int nRead = 0;
+			while ( parser.hasNextScan() ) {
+				if (this.isCanceled())
+					throw new CancelProcessException();
+
+				Scan scan = parser.getNextScan();
+				if ( ++nRead % nCheckPoint == 0 )
+					this.m_progressReporter.updateProgress("Reading Scan #", nRead);
+				if ( scan == null )
+					continue;
+
+				// Writes the pending scans at next MS1 scan
+				if ( scan.getHeader().getMsLevel() == 1 ) {
+					this.writePickedScans(lOutputs, scanMS1);
+					scanMS1 = scan;
+					continue;
+				}
+				this.pickScan(scan, scanMS1, lOutputs);
+			}
+			this.writePickedScans(lOutputs, scanMS1);
+
+			if ( !this.finishOutputs(lOutputs) )
+				return false;
+			this.m_progressReporter.updateProgresBar("Done!");
+		} finally {
+			parser.close();
+			closeOutputs(lOutputs);
+		}
+		return true;
+	}
+
+	/**
+	 * Opens the sequential parser of the mzXML file.
+	 * @param a_strFile path of the mzXML file
+	 * @return MSXMLSequentialParser
+	 * @throws MzXMLFormatException if the file has no scan index
+	 */
+	static MSXMLSequentialParser openSequentialParser(String a_strFile)
+			throws XMLStreamException, IOException, MzXMLFormatException {
+		MSXMLSequentialParser parser = new MSXMLSequentialParser();
+		parser.open(a_strFile);
+		if ( parser.getMaxScanNumber() < 1 ) {
+			parser.close();
+			throw new MzXMLFormatException("No scan index is found in " + a_strFile);
+		}
+		return parser;
+	}
+
+	/**
+	 * Creates the outputs of the scans picked in the streaming mode. Writers are
+	 * created with the first scans, msRun will be set after all scans are picked.
+	 * @return List of PickerOutput in order of the output files
+	 */
+	List<PickerOutput> createOutputs() {
+		this.m_bOutputsCreated = true;
+		List<PickerOutput> lOutputs = new ArrayList<>();
+		for ( String strFile : this.m_lOutputFiles ) {
+			PickerOutput output = new PickerOutput();
+			output.strFile = strFile;
+			lOutputs.add(output);
+		}
+		return lOutputs;
+	}
+
+	/**
+	 * Picks an MS2 scan read in the streaming mode into the outputs of the hit
+	 * targets. The peaks of the scan are shared with the other pickers.
+	 * @param a_scan Scan of MS level 2 or higher
+	 * @param a_scanMS1 Scan of the last MS1 scan, or null if no MS1 scan is read
+	 * @param a_lOutputs List of PickerOutput to add the scan
+	 * @throws CancelProcessException
+	 */
+	void pickScan(Scan a_scan, Scan a_scanMS1, List<PickerOutput> a_lOutputs) throws CancelProcessException {
+		// Skips scans before the first MS1 scan
+		if ( a_scanMS1 == null )
+			return;
+
+		// Skips if precursor scan is not parent MS1 scan
+		ScanHeader header = a_scan.getHeader();
+		if ( header.getPrecursorScanNum() != a_scanMS1.getHeader().getNum() )
+			return;
+
+		// Skips if no peaks in this scan
+		if ( header.getPeaksCount() == 0 )
+			return;
+
+		// Filters scan
+		BitSet candidates = this.m_matcher.getCandidates(header.getLowMz(), header.getHighMz(),
+				header.getBasePeakIntensity());
+		if ( candidates.isEmpty() )
+			return;
+		if ( this.m_planner != null && !this.m_planner.accept(new ScanContext(a_scan)) )
+			return;
+		BitSet outputs = this.getOutputs(this.filterScan(a_scan, candidates));
+		for ( int i = outputs.nextSetBit(0); i >= 0; i = outputs.nextSetBit(i + 1) )
+			a_lOutputs.get(i).lSubScans.add(a_scan);
+	}
+
+	/**
+	 * Writes the pending scans of all outputs at next MS1 scan.
+	 * @see #writePickedScans(PickerOutput, Scan)
+	 */
+	void writePickedScans(List<PickerOutput> a_lOutputs, Scan a_scanMS1) throws IOException {
+		for ( PickerOutput output : a_lOutputs )
+			this.writePickedScans(output, a_scanMS1);
+	}
+
+	/**
+	 * Writes the header and the footer of the outputs with scans.
+	 * @param a_lOutputs List of PickerOutput
+	 * @return {@code true} if any output has scans
+	 * @throws IOException
+	 */
+	boolean finishOutputs(List<PickerOutput> a_lOutputs) throws IOException {
+		boolean bWritten = false;
+		for ( PickerOutput output : a_lOutputs ) {
+			if ( output.nScans == 0 )
+				continue;
+			this.m_progressReporter.updateProgresBar("Writing header");
+			output.writer.setMsRun(output.nScans, output.lRetentionTimes.get(0), output.lRetentionTimes.get(1));
+			output.writer.writeDeferredHeader();
+
+			this.m_progressReporter.updateProgresBar("Writing footer");
+			output.writer.writeFooter();
+			bWritten = true;
+		}
+		return bWritten;
+	}
+
+	static void closeOutputs(List<PickerOutput> a_lOutputs) throws IOException {
+		for ( PickerOutput output : a_lOutputs ) {
+			if ( output.writer != null )
+				output.writer.closeFile();
+		}
+	}
+
+	/**
+	 * Writes the picked MS2 scans with the parent MS1 scan if needed, and clears
+	 * the picked scans. The parent MS1 scan is written even if no MS2 scan is
+	 * picked, as in the random access mode. The writer is created with the first
+	 * scans.
+	 * @param a_output PickerOutput of the picked MS2 scans, which is updated with
+	 *        the number and the retention times of the written scans
+	 * @param a_scanMS1 Scan of the parent MS1 scan, or null if no MS1 scan is read
+	 * @throws IOException
+	 */
+	private void writePickedScans(PickerOutput a_output, Scan a_scanMS1) throws IOException {
+		boolean bWriteParentScan = this.isWriteParentScan() && a_scanMS1 != null;
+		if ( a_output.lSubScans.isEmpty() && !bWriteParentScan )
+			return;
+		if ( a_output.writer == null ) {
+			a_output.writer = this.createMzXMLWriter();
+			a_output.writer.createMZXMLWithDeferredHeader(a_output.strFile);
+		}
+		List<Scan> lScans = new ArrayList<>();
+		if ( bWriteParentScan )
+			lScans.add(this.cropParentScan(a_scanMS1, a_output.lSubScans));
+		lScans.addAll(a_output.lSubScans);
+		a_output.lSubScans.clear();
+		List<String> lRetentionTimes = a_output.lRetentionTimes;
+		for ( Scan scan : lScans ) {
+			a_output.writer.writeScan(scan);
+			String strTime = scan.getHeader().getRetentionTime();
+			if ( lRetentionTimes.isEmpty() )
+				lRetentionTimes.add(strTime);
+			if ( lRetentionTimes.size() < 2 )
+				lRetentionTimes.add(strTime);
+			else
+				lRetentionTimes.set(1, strTime);
+		}
+		a_output.nScans += lScans.size();
+	}
+
+	/**
+	 * Crops the parent MS1 scan to the windows around the precursor m/z values of
+	 * the MS2 scans if the window is set. The parent MS1 scan is decoded only once
+	 * and shared by the outputs, and the cropped scan is a copy for each output.
+	 * @param a_scanMS1 Scan of the parent MS1 scan
+	 * @param a_lSubScans List of the MS2 scans written with the parent MS1 scan
+	 * @return the cropped Scan, or the given Scan if it is not cropped
+	 */
+	private Scan cropParentScan(Scan a_scanMS1, List<Scan> a_lSubScans) {
+		if ( this.m_cropper == null )
+			return a_scanMS1;
+		double[] aPrecursorMzs = new double[a_lSubScans.size()];
+		for ( int i = 0; i < aPrecursorMzs.length; i++ )
+			aPrecursorMzs[i] = a_lSubScans.get(i).getHeader().getPrecursorMz();
+		return this.m_cropper.crop(a_scanMS1, aPrecursorMzs);
+	}
+
+	/**
+	 * Returns the indexes of the outputs to write a scan which hits the given targets.
+	 * @param a_hits BitSet of the indexes of the hit targets
+	 * @return BitSet of the indexes of the outputs
+	 */
+	private BitSet getOutputs(BitSet a_hits) {
+		if ( this.isOutputPerTarget() || a_hits.isEmpty() )
+			return a_hits;
+		BitSet outputs = new BitSet(1);
+		outputs.set(0);
+		return outputs;
+	}
+
+	/**
+	 * Filters the scans with the targets. The rows of the scans are split into
+	 * chunks starting at MS1 scans, so that each MS1 scan and its MS2 scans are
+	 * in the same chunk, and the chunks are filtered on the worker threads, each
+	 * of which reads the scans with its own parser. The results of the chunks
+	 * are concatenated in order of the chunks.
+	 * @return List of the filtered scan numbers for each output file
+	 * @throws CancelProcessException
+	 * @throws IOException if the hit report cannot be written
+	 * @throws Exception if the scans cannot be read on the worker threads
+	 */
+	private List<LinkedList<Integer>> filterScans() throws Exception {
+		// Progress for reading headers and filtering scans
+		int nMax = this.getParser().getMaxScanNumber();
+		this.m_progressReporter.setMax(nMax * 2);
 		int nCheckPoint = 1;
 		if ( nMax > 1000 ) {
-			this.m_progressReporter.setMax(1000);
 			nCheckPoint = nMax / 1000;
+			this.m_progressReporter.setMax(2000, nCheckPoint);
+		}
+		ScanHeaderTable headers = this.collectScanHeaders(nMax, nCheckPoint);
+		this.m_headers = headers;
+
+		int nThreads = this.getParallelism();
+		List<int[]> lChunks = getChunks(headers, nThreads * CHUNKS_PER_THREAD);
+		if ( nThreads <= 1 || lChunks.size() <= 1 ) {
+			return this.filterScans(headers, 0, headers.size(), nCheckPoint,
+					this.getParser(), this.m_planner, this.m_report, this.m_progressReporter::updateProgress);
+		}
+
+		// Each worker has its own parser and plan of the scan filter
+		String strFile = this.m_filter.getOpenFrom();
+		ThreadLocal<MSXMLParser> parsers = ThreadLocal.withInitial(() -> new MSXMLParser(strFile));
+		ThreadLocal<ScanFilterPlanner> planners = ThreadLocal.withInitial(this::createWorkerPlanner);
+		int iCheckPoint = nCheckPoint;
+		try ( SubtaskExecutor subtasks = new SubtaskExecutor(nThreads, this.getCancelToken(), this.m_progressReporter) ) {
+			List<Future<FilteredChunk>> lFutures = new ArrayList<>();
+			for ( int[] aChunk : lChunks ) {
+				lFutures.add(subtasks.submit(() -> {
+					FilteredChunk chunk = new FilteredChunk();
+					// Hits are reported into the buffer, which is appended in order of the chunks
+					if ( this.m_report != null )
+						chunk.report = new PickerReportWriter(this.m_lTargets);
+					chunk.lFilteredScans = this.filterScans(headers, aChunk[0], aChunk[1], iCheckPoint,
+							parsers.get(), planners.get(), chunk.report, subtasks::updateProgress);
+					return chunk;
+				}));
+			}
+
+			List<LinkedList<Integer>> lFilteredScans = new ArrayList<>();
+			for ( int i = 0; i < this.m_lOutputFiles.size(); i++ )
+				lFilteredScans.add(new LinkedList<>());
+			for ( Future<FilteredChunk> future : lFutures ) {
+				FilteredChunk chunk = subtasks.waitFor(future);
+				for ( int i = 0; i < lFilteredScans.size(); i++ )
+					lFilteredScans.get(i).addAll(chunk.lFilteredScans.get(i));
+				if ( chunk.report != null )
+					this.m_report.append(chunk.report);
+			}
+			return lFilteredScans;
 		}
-		for( int i = 1; i < nMax + 1; i++ ) {
-			ScanHeader header = m_parser.rapHeader(i);
-			if ( header == null || header.getMsLevel() != 1 )
+	}
+
+	/**
+	 * Splits the rows of the scans into chunks starting at MS1 scans except for
+	 * the first chunk. A chunk is longer than the average if an MS1 scan has
+	 * many MS2 scans.
+	 * @param a_headers ScanHeaderTable of the scans
+	 * @param a_nChunks the number of the chunks to split into
+	 * @return List of the ranges of the rows, from inclusive and to exclusive
+	 */
+	private static List<int[]> getChunks(ScanHeaderTable a_headers, int a_nChunks) {
+		List<int[]> lChunks = new ArrayList<>();
+		int nRows = a_headers.size();
+		int nSize = Math.max(1, nRows / Math.max(1, a_nChunks));
+		int iFrom = 0;
+		while ( iFrom < nRows ) {
+			int iTo = Math.min(nRows, iFrom + nSize);
+			while ( iTo < nRows && a_headers.getMsLevel(iTo) != 1 )
+				iTo++;
+			lChunks.add(new int[] { iFrom, iTo });
+			iFrom = iTo;
+		}
+		return lChunks;
+	}
+
+	/**
+	 * Creates the plan of the scan filter for a worker thread.
+	 * @return ScanFilterPlanner, or null if no scan filter is given
+	 */
+	private ScanFilterPlanner createWorkerPlanner() {
+		if ( this.m_planner == null )
+			return null;
+		ScanFilterPlanner planner = new ScanFilterPlanner(this.m_filter.getScanFilter());
+		synchronized ( this.m_lWorkerPlanners ) {
+			this.m_lWorkerPlanners.add(planner);
+		}
+		return planner;
+	}
+
+	/**
+	 * Filters the scans in the range of the rows. The MS2 scans before the first
+	 * MS1 scan in the range are skipped, so the range should start at an MS1 scan.
+	 * @param a_headers ScanHeaderTable of the scans
+	 * @param a_iFrom the first row, inclusive
+	 * @param a_iTo the last row, exclusive
+	 * @param a_nCheckPoint interval of the scans to update the progress
+	 * @param a_parser MSXMLParser to read the peaks
+	 * @param a_planner ScanFilterPlanner of the scan filter, or null
+	 * @param a_report PickerReportWriter to write the hits, or null
+	 * @param a_progress receiver of the label and the scan number at each check point
+	 * @return List of the filtered scan numbers for each output file
+	 * @throws CancelProcessException
+	 * @throws IOException if the hit report cannot be written
+	 */
+	private List<LinkedList<Integer>> filterScans(ScanHeaderTable a_headers, int a_iFrom, int a_iTo,
+			int a_nCheckPoint, MSXMLParser a_parser, ScanFilterPlanner a_planner, PickerReportWriter a_report,
+			ObjIntConsumer<String> a_progress) throws CancelProcessException, IOException {
+		int nOutputs = this.m_lOutputFiles.size();
+		List<LinkedList<Integer>> lFilteredScans = new ArrayList<>();
+		for ( int i = 0; i < nOutputs; i++ )
+			lFilteredScans.add(new LinkedList<>());
+
+		// Filter scans
+		for( int i = a_iFrom; i < a_iTo; i++ ) {
+			if ( a_headers.getMsLevel(i) != 1 )
 				continue;
 
 			// MS1 scan
-			if ( i % nCheckPoint == 0 )
-				this.m_progressReporter.updateProgresBar("Reading Scan #" + header.getNum());
-			int iMS1 = i;
+			int iMS1 = a_headers.getScanNum(i);
 
-			if (this.m_canceled)
+			// Checks the cancellation once for the MS1 scan and its subscans
+			if (this.isCanceled())
 				throw new CancelProcessException();
 
-			List<Integer> lScans = new ArrayList<>();
-			lScans.add(iMS1);
+			// Scans picked for each output
+			List<List<Integer>> lScans = new ArrayList<>();
+			for ( int j = 0; j < nOutputs; j++ ) {
+				List<Integer> lOutputScans = new ArrayList<>();
+				lOutputScans.add(iMS1);
+				lScans.add(lOutputScans);
+			}
 
 			// Reads through next MS1 scan to seek subscans
-			while( i < nMax + 1 ) {
+			while( i + 1 < a_iTo && a_headers.getMsLevel(i + 1) != 1 ) {
 				i++;
 
-				if (this.m_canceled)
-					throw new CancelProcessException();
-
-				ScanHeader headerSub = m_parser.rapHeader(i);
-				if ( headerSub == null )
-					continue;
-				// Break at next MS1 scan
-				if( headerSub.getMsLevel() == header.getMsLevel() ) {
-					i--;
-					break;
-				}
-				if ( i % nCheckPoint == 0 )
-					this.m_progressReporter.updateProgresBar("Reading Scan #" + header.getNum());
-
 				// Skips if precursor scan is not parent MS1 scan
-				if ( headerSub.getPrecursorScanNum() != iMS1 )
+				if ( a_headers.getPrecursorScanNum(i) != iMS1 )
 					continue;
 
 				// Skips if no peaks in this scan
-				if ( headerSub.getPeaksCount() == 0 )
+				if ( a_headers.getPeaksCount(i) == 0 )
 					continue;
 
 				// Filters scan
-				if ( this.filterScan(m_parser.rap(i)) )
-					lScans.add(i);
+				int iScan = a_headers.getScanNum(i);
+				if ( iScan % a_nCheckPoint == 0 )
+					a_progress.accept("Filtering Scan #", iScan);
+				if ( a_report != null )
+					a_report.countFilteredScan();
+				// Skips without decoding peaks if no target can be hit
+				BitSet candidates = this.m_matcher.getCandidates(a_headers.getLowMz(i), a_headers.getHighMz(i),
+						a_headers.getBasePeakIntensity(i));
+				if ( candidates.isEmpty() )
+					continue;
+				// Peaks are read by the scan filter if needed
+				ScanContext scan = new ScanContext(a_headers, i, a_parser::rap);
+				if ( a_planner != null && !a_planner.accept(scan) )
+					continue;
+				BitSet hits = this.filterScan(scan.getScan(), candidates);
+				if ( a_report != null && !hits.isEmpty() )
+					this.writeReport(a_report, a_headers, i, scan.getPeaks(), hits);
+				BitSet outputs = this.getOutputs(hits);
+				for ( int j = outputs.nextSetBit(0); j >= 0; j = outputs.nextSetBit(j + 1) )
+					lScans.get(j).add(iScan);
+			}
+			for ( int j = 0; j < nOutputs; j++ ) {
+				List<Integer> lOutputScans = lScans.get(j);
+				// Removes MS1 scan if the parent scan is not written
+				if ( !this.isWriteParentScan() )
+					lOutputScans.remove(0);
+				lFilteredScans.get(j).addAll(lOutputScans);
 			}
-			// Removes MS1 scan if the flag is true
-			if ( !this.m_writeParentScan )
-				lScans.remove(0);
-			if ( lScans.isEmpty() )
-				continue;
-			lFilteredScans.addAll(lScans);
 		}
 
 		return lFilteredScans;
 	}
 
-	private boolean filterScan(Scan a_scan) throws CancelProcessException {
-		if ( a_scan == null )
-			return false;
-
-		if (this.m_canceled)
-			throw new CancelProcessException();
-
-		// Calculate interval
-		Double mzValue = m_filter.getMzValue();
-		Double accuracyValue = m_filter.getAccuracy();
-		if ( m_filter.getPPM() )
-			accuracyValue = (mzValue / 1000000) * accuracyValue;
-		Double minInterval = mzValue - accuracyValue;
-		Double maxInterval = mzValue + accuracyValue;
-
-		double[][] massIntensityList = a_scan.getMassIntensityList();
-
-		// Double highestPeakIntensityInSpectra =
-		// a_scan.getPeaklist().get(0).getIntensity();
-		Double highestPeakIntensity = massIntensityList[1][0];
-		/* first vector is masses and second vector is the intensity */
-
-		// Find highest peak
-		for (int i = 1; i < massIntensityList[1].length; i++) {
-			if (this.m_canceled)
-				throw new CancelProcessException();
+	private int getParallelism() {
+		Integer iParallelism = this.m_filter.getParallelism();
+		if ( iParallelism == null || iParallelism < 1 )
+			return Runtime.getRuntime().availableProcessors();
+		return iParallelism;
+	}
 
-			highestPeakIntensity = Math.max(highestPeakIntensity, massIntensityList[1][i]);
+	/**
+	 * Writes the hits of a scan into the report with the most intense peak of
+	 * each hit target.
+	 * @param a_report PickerReportWriter to write the hits
+	 * @param a_headers ScanHeaderTable of the scans
+	 * @param a_iRow index of the row of the scan
+	 * @param a_peaks double matrix of the peaks of the scan
+	 * @param a_hits BitSet of the indexes of the hit targets
+	 * @throws IOException
+	 */
+	private void writeReport(PickerReportWriter a_report, ScanHeaderTable a_headers, int a_iRow, double[][] a_peaks, BitSet a_hits)
+			throws IOException {
+		double dHighestIntensity = PeakTargetMatcher.getHighestIntensity(a_peaks[1]);
+		for ( int k = a_hits.nextSetBit(0); k >= 0; k = a_hits.nextSetBit(k + 1) ) {
+			int iPeak = this.m_matcher.getMostIntensePeak(a_peaks, k);
+			double dIntensity = a_peaks[1][iPeak];
+			a_report.writeHit(a_headers.getScanNum(a_iRow), a_headers.getRetentionTime(a_iRow),
+					a_headers.getPrecursorMz(a_iRow), a_headers.getPrecursorCharge(a_iRow), k,
+					a_peaks[0][iPeak], dIntensity, dIntensity * 100 / dHighestIntensity);
 		}
+		a_report.countHitScan();
+	}
 
-		// Set cut off value
-		Double cutOffValue = m_filter.getCutOffValue();
-		if ( m_filter.getPercentage() )
-			cutOffValue = highestPeakIntensity * cutOffValue / 100;
-
-		// Find matched peak
-		for (int i = 0; i < massIntensityList[0].length; i++) {
-			if (this.m_canceled)
+	/**
+	 * Reads headers of all scans into a compact table.
+	 * @param a_nMax the maximum scan number
+	 * @param a_nCheckPoint interval of the scans to update the progress
+	 * @return ScanHeaderTable of the scans in order of the scan numbers
+	 * @throws CancelProcessException
+	 */
+	private ScanHeaderTable collectScanHeaders(int a_nMax, int a_nCheckPoint) throws CancelProcessException {
+		ScanHeaderTable headers = ScanHeaderIndex.loadIfEnabled(this.m_filter);
+		if ( headers != null )
+			return headers;
+		headers = new ScanHeaderTable(a_nMax);
+		for( int i = 1; i < a_nMax + 1; i++ ) {
+			if (this.isCanceled())
 				throw new CancelProcessException();
 
-			// Skip if the intensity is smaller than cut off value
-			if ( massIntensityList[1][i] < cutOffValue )
+			ScanHeader header = this.getParser().rapHeader(i);
+			if ( header == null )
 				continue;
+			if ( i % a_nCheckPoint == 0 )
+				this.m_progressReporter.updateProgress("Reading Scan #", header.getNum());
+			headers.addScanHeader(header);
+		}
+		ScanHeaderIndex.saveIfEnabled(this.m_filter, headers);
+		return headers;
+	}
 
-			// Skip if the m/z value is out of the range
-			if (massIntensityList[0][i] > maxInterval)
-				continue;
-			if ( massIntensityList[0][i] < minInterval)
-				continue;
+	/**
+	 * Matches the peaks of the scan against the targets.
+	 * @param a_scan Scan to filter
+	 * @param a_candidates BitSet of the indexes of the targets which can be hit
+	 * @return BitSet of the indexes of the hit targets
+	 */
+	private BitSet filterScan(Scan a_scan, BitSet a_candidates) {
+		if ( a_scan == null )
+			return new BitSet();
 
-			// Returns true when any peak is matched
-			return true;
+		return this.m_matcher.match(a_scan.getMassIntensityList(), a_candidates);
+	}
+
+	/**
+	 * Writes the filtered scans into all output files at once. Each scan is read
+	 * only once in order of the scan numbers and written into the outputs which
+	 * have it, so that a parent MS1 scan shared by the outputs is decoded once.
+	 * Outputs without scans are not created.
+	 * @param a_lFilteredScans List of the filtered scan numbers for each output file
+	 * @return {@code false} if no output has scans
+	 * @throws IOException
+	 * @throws CancelProcessException
+	 * @throws MzXMLFormatException
+	 */
+	private boolean writeMzXML(List<LinkedList<Integer>> a_lFilteredScans)
+			throws IOException, CancelProcessException, MzXMLFormatException {
+		// Outputs having each scan, in order of the scan numbers
+		TreeMap<Integer, BitSet> mapScanToOutputs = new TreeMap<>();
+		for ( int i = 0; i < a_lFilteredScans.size(); i++ ) {
+			for ( int iScan : a_lFilteredScans.get(i) )
+				mapScanToOutputs.computeIfAbsent(iScan, k -> new BitSet()).set(i);
 		}
+		if ( mapScanToOutputs.isEmpty() )
+			return false;
 
-		return false;
-	}
+		this.m_progressReporter.setMax(mapScanToOutputs.size() + 3);
+
+		this.m_bOutputsCreated = true;
+		boolean bRawCopy = this.isRawCopy();
+		MzXMLWriter[] aWriters = new MzXMLWriter[a_lFilteredScans.size()];
+		try ( FileChannel source = bRawCopy
+				? FileChannel.open(Paths.get(this.m_filter.getOpenFrom()), StandardOpenOption.READ) : null ) {
+			// Create mzXML files
+			for ( int i = 0; i < aWriters.length; i++ ) {
+				LinkedList<Integer> lScanIndexes = a_lFilteredScans.get(i);
+				if ( lScanIndexes.isEmpty() )
+					continue;
 
-	private void writeMzXML(LinkedList<Integer> a_lScanIndexes) throws IOException, CancelProcessException, MzXMLFormatException {
+				// Create the MzXML writer
+				MzXMLWriter writer = this.createMzXMLWriter();
+				// The copied bytes are not read to compute SHA-1
+				if ( bRawCopy )
+					writer.setWriteSha1(false);
+				aWriters[i] = writer;
+				writer.createMZXML(this.m_lOutputFiles.get(i));
 
-		this.m_progressReporter.setMax(a_lScanIndexes.size() + 3);
+				if (this.isCanceled())
+					throw new CancelProcessException();
 
-		// Create the MzXML writer
-		MzXMLWriter writer = new MzXMLWriter();
+				String strStartTime = this.getParser().rapHeader(lScanIndexes.getFirst()).getRetentionTime();
+				String strEndTime = this.getParser().rapHeader(lScanIndexes.getLast()).getRetentionTime();
+				writer.setMsRun(lScanIndexes.size(), strStartTime, strEndTime);
+			}
+
+			// Write Header
+			this.m_progressReporter.updateProgresBar("Writing header");
+			for ( MzXMLWriter writer : aWriters ) {
+				if ( writer != null )
+					writer.writeHeader();
+			}
 
-		// Create mzXML file
-		writer.createMZXML(this.m_filter.getSaveLocation());
+			List<Integer> lScans = new ArrayList<>(mapScanToOutputs.keySet());
+			for ( int k = 0; k < lScans.size(); k++ ) {
+				if (this.isCanceled())
+					throw new CancelProcessException();
+				int iScan = lScans.get(k);
+				BitSet outputs = mapScanToOutputs.get(iScan);
+				this.m_progressReporter.updateProgress("Writing scan #", iScan);
+				if ( this.m_cropper != null && this.isMS1(iScan) ) {
+					this.writeCroppedParentScan(aWriters, outputs, iScan, lScans, k, mapScanToOutputs);
+					continue;
+				}
+				this.writeScan(aWriters, outputs, iScan, source);
+			}
 
-		if (this.m_canceled)
-			throw new CancelProcessException();
+			this.m_progressReporter.updateProgresBar("Writing footer");
+			for ( MzXMLWriter writer : aWriters ) {
+				if ( writer != null )
+					writer.writeFooter();
+			}
+		} finally {
+			// close the files
+			for ( MzXMLWriter writer : aWriters ) {
+				if ( writer != null )
+					writer.closeFile();
+			}
+		}
+		this.m_progressReporter.updateProgresBar("Done!");
+		return true;
+	}
 
-		String strStartTime = m_parser.rapHeader(a_lScanIndexes.getFirst()).getRetentionTime();
-		String strEndTime = m_parser.rapHeader(a_lScanIndexes.getLast()).getRetentionTime();
-		writer.setMsRun(a_lScanIndexes.size(), strStartTime, strEndTime);
+	private boolean isMS1(int a_iScan) {
+		int iRow = this.m_headers.getRow(a_iScan);
+		return iRow >= 0 && this.m_headers.getMsLevel(iRow) == 1;
+	}
 
-		// Write Header
-		this.m_progressReporter.updateProgresBar("Writing header");
-		writer.write(writer.getHeader());
-//		writer.writeHeader();
+	/**
+	 * Writes a scan into the outputs. The scan is copied from the input file as
+	 * it is if possible.
+	 * @param a_aWriters MzXMLWriters of the outputs
+	 * @param a_outputs BitSet of the indexes of the outputs to write the scan
+	 * @param a_iScan the scan number
+	 * @param a_source FileChannel of the input file to copy the scan, or null
+	 * @throws IOException
+	 */
+	private void writeScan(MzXMLWriter[] a_aWriters, BitSet a_outputs, int a_iScan, FileChannel a_source)
+			throws IOException {
+		// Copies the scan as it is if possible
+		if ( a_source != null ) {
+			RawScanElement raw = RawScanElement.read(a_source, this.getParser().getScanOffset(a_iScan));
+			if ( raw != null && raw.getScanNum() == a_iScan ) {
+				for ( int i = a_outputs.nextSetBit(0); i >= 0; i = a_outputs.nextSetBit(i + 1) )
+					a_aWriters[i].writeRawScan(raw, a_source);
+				return;
+			}
+		}
+		Scan scan = this.getParser().rap(a_iScan);
+		for ( int i = a_outputs.nextSetBit(0); i >= 0; i = a_outputs.nextSetBit(i + 1) )
+			a_aWriters[i].writeScan(scan);
+	}
 
-		for (int iScan : a_lScanIndexes) {
-			if (this.m_canceled) {
-				writer.closeFile();
-				throw new CancelProcessException();
+	/**
+	 * Writes a parent MS1 scan cropped for each output to the precursor m/z
+	 * values of its MS2 scans in the output, which follow the parent MS1 scan
+	 * until next MS1 scan. The precursor m/z values are taken from the scan
+	 * headers, and the parent MS1 scan is decoded only once for all outputs.
+	 * @param a_aWriters MzXMLWriters of the outputs
+	 * @param a_outputs BitSet of the indexes of the outputs to write the scan
+	 * @param a_iScan the scan number of the parent MS1 scan
+	 * @param a_lScans List of the scan numbers to write in order
+	 * @param a_iIndex index of the parent MS1 scan in the list
+	 * @param a_mapScanToOutputs Map of the scan numbers to the indexes of the outputs
+	 * @throws IOException
+	 */
+	private void writeCroppedParentScan(MzXMLWriter[] a_aWriters, BitSet a_outputs, int a_iScan,
+			List<Integer> a_lScans, int a_iIndex, Map<Integer, BitSet> a_mapScanToOutputs) throws IOException {
+		Scan scan = this.getParser().rap(a_iScan);
+		for ( int i = a_outputs.nextSetBit(0); i >= 0; i = a_outputs.nextSetBit(i + 1) ) {
+			List<Double> lPrecursorMzs = new ArrayList<>();
+			for ( int k = a_iIndex + 1; k < a_lScans.size(); k++ ) {
+				int iRow = this.m_headers.getRow(a_lScans.get(k));
+				if ( this.m_headers.getMsLevel(iRow) == 1 )
+					break;
+				if ( a_mapScanToOutputs.get(a_lScans.get(k)).get(i) )
+					lPrecursorMzs.add(this.m_headers.getPrecursorMz(iRow));
 			}
-			Scan scan = this.m_parser.rap(iScan);
-			this.m_progressReporter.updateProgresBar("Writing scan #" + scan.getHeader().getNum());
-			writer.write(writer.getScan(scan));
+			double[] aPrecursorMzs = new double[lPrecursorMzs.size()];
+			for ( int k = 0; k < aPrecursorMzs.length; k++ )
+				aPrecursorMzs[k] = lPrecursorMzs.get(k);
+			a_aWriters[i].writeScan(this.m_cropper.crop(scan, aPrecursorMzs));
 		}
+	}
 
-		this.m_progressReporter.updateProgresBar("Writing footer");
-		writer.write(writer.getFooter());
-//		writer.writeFooter();
+	/**
+	 * Returns whether the picked scans are copied from the input file. The scans
+	 * are written by MzXMLWriter if the peaks are compressed.
+	 */
+	private boolean isRawCopy() {
+		return this.m_filter.getRawCopy() != null && this.m_filter.getRawCopy()
+				&& this.m_filter.getCompressionLevel() == null;
+	}
 
-		// close the file
-		writer.closeFile();
-		this.m_progressReporter.updateProgresBar("Done!");
+	/**
+	 * Creates MzXMLWriter with the parallelism and compression settings.
+	 * @return MzXMLWriter
+	 */
+	private MzXMLWriter createMzXMLWriter() {
+		MzXMLWriter writer = new MzXMLWriter();
+		writer.setThreads(this.getParallelism());
+		if ( this.m_filter.getCompressionLevel() != null )
+			writer.setCompression(this.m_filter.getCompressionLevel());
+		return writer;
 	}
 
-	private void deleteMzXMLFile() throws IOException {
-		if ( !Files.exists(Paths.get(this.m_filter.getSaveLocation())) )
-				return;
-		Files.delete(Paths.get(this.m_filter.getSaveLocation()));
+	/**
+	 * Deletes the output files being written or the hit report when the task
+	 * is canceled or fails.
+	 */
+	@Override
+	protected void cleanUp() throws IOException {
+		if ( this.m_filter.getReportFile() != null ) {
+			if ( this.m_report != null )
+				this.m_report.close();
+			Files.deleteIfExists(Paths.get(this.m_filter.getReportFile()));
+		}
+		if ( this.m_bOutputsCreated )
+			this.deleteMzXMLFiles();
+	}
+
+	void deleteMzXMLFiles() throws IOException {
+		for ( String strFile : this.m_lOutputFiles )
+			Files.deleteIfExists(Paths.get(strFile));
 	}
 }
@@ -0,0 +1,114 @@
+package org.grits.toolbox.tools.spectrafiltering.process;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.grits.toolbox.tools.spectrafiltering.dialog.process.CancelToken;
+import org.grits.toolbox.tools.spectrafiltering.dialog.process.IProgressReporter;
+
+/**
+ * Runs the subtasks of a task on several threads. The subtasks share the
+ * CancelToken of the task, which is checked before each subtask starts, and
+ * count their progress into this executor without calling the reporter. The
+ * progress is passed to the reporter by the thread of the task while it waits
+ * for the results, so the reporter is only called from one thread.
+ */
+class SubtaskExecutor implements AutoCloseable {
+
+	/** Interval in milliseconds to check the cancellation and pass the progress */
+	private static final long POLL_INTERVAL = 100;
+
+	private ForkJoinPool m_pool;
+	private CancelToken m_cancelToken;
+	private IProgressReporter m_progressReporter;
+
+	// Progress counted by the subtasks since the last poll
+	private AtomicInteger m_nSteps = new AtomicInteger();
+	private volatile String m_strLabel = "";
+	private volatile int m_iItem = 0;
+
+	/**
+	 * Constructor.
+	 * @param a_nThreads the number of the threads
+	 * @param a_cancelToken CancelToken of the task
+	 * @param a_progressReporter IProgressReporter of the task
+	 */
+	SubtaskExecutor(int a_nThreads, CancelToken a_cancelToken, IProgressReporter a_progressReporter) {
+		this.m_pool = new ForkJoinPool(a_nThreads);
+		this.m_cancelToken = a_cancelToken;
+		this.m_progressReporter = a_progressReporter;
+	}
+
+	/**
+	 * Submits a subtask, which is skipped if the task is canceled before it starts.
+	 * @param a_subtask Callable of the subtask
+	 * @return Future of the result
+	 */
+	<T> Future<T> submit(Callable<T> a_subtask) {
+		return this.m_pool.submit(() -> {
+			if ( this.m_cancelToken.isCanceled() )
+				throw new CancelProcessException();
+			return a_subtask.call();
+		});
+	}
+
+	/**
+	 * Counts a step of the progress from a subtask without blocking.
+	 * @param a_strLabel label of the current item, e.g. "Filtering Scan #"
+	 * @param a_iItem number of the current item appended to the label
+	 */
+	void updateProgress(String a_strLabel, int a_iItem) {
+		this.m_strLabel = a_strLabel;
+		this.m_iItem = a_iItem;
+		this.m_nSteps.incrementAndGet();
+	}
+
+	/**
+	 * Waits for the result of a subtask while checking the cancellation and
+	 * passing the progress of the subtasks to the reporter.
+	 * @param a_future Future of the subtask
+	 * @return the result of the subtask
+	 * @throws CancelProcessException if the task is canceled
+	 * @throws Exception thrown by the subtask
+	 */
+	<T> T waitFor(Future<T> a_future) throws Exception {
+		while ( true ) {
+			this.passProgress();
+			if ( this.m_cancelToken.isCanceled() )
+				throw new CancelProcessException();
+			try {
+				return a_future.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				continue;
+			} catch (ExecutionException e) {
+				if ( e.getCause() instanceof Exception )
+					throw (Exception) e.getCause();
+				throw e;
+			}
+		}
+	}
+
+	private void passProgress() {
+		int nSteps = this.m_nSteps.getAndSet(0);
+		if ( nSteps == 0 )
+			return;
+		String strLabel = this.m_strLabel;
+		int iItem = this.m_iItem;
+		for ( int i = 0; i < nSteps; i++ )
+			this.m_progressReporter.updateProgress(strLabel, iItem);
+	}
+
+	/**
+	 * Stops the subtasks still running and passes the remaining progress.
+	 */
+	@Override
+	public void close() {
+		this.m_pool.shutdownNow();
+		this.passProgress();
+	}
+}
@@ -1,6 +1,10 @@
 package org.grits.toolbox.tools.spectrafiltering.utils;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import java.util.Base64;
 
@@ -46,5 +50,105 @@ public class Base64SpectraUtil {
 		return t_base64;
 	}
 
-}
+	/**
+	 * Method that writes a spectrum as binary peaks into the stream. m/z values
+	 * and intensities are interleaved and written through the given chunk buffer,
+	 * so that no array of the whole peaks is created.
+	 *
+	 * @param a_spectrum
+	 *            double matrix of the spectra the first row (double[0]) are the
+	 *            m/z values and the second row (double[1]) are the intensity
+	 *            values
+	 * @param a_iPrecision
+	 *            32 to write floats or 64 to write doubles
+	 * @param a_byteOrder
+	 *            byte order of the values
+	 * @param a_out
+	 *            OutputStream to write the peaks
+	 * @param a_chunk
+	 *            reusable buffer of at least 16 bytes
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             if the precision is neither 32 nor 64
+	 */
+	public static void writePeaks(double[][] a_spectrum, int a_iPrecision, ByteOrder a_byteOrder, OutputStream a_out,
+			ByteBuffer a_chunk) throws IOException, IllegalArgumentException {
+		if (a_iPrecision != 32 && a_iPrecision != 64) {
+			throw new IllegalArgumentException("Precision must be 32 or 64, but is " + a_iPrecision);
+		}
+		a_chunk.clear();
+		a_chunk.order(a_byteOrder);
+		int t_peakSize = a_iPrecision / 4;
+		int t_peakCount = a_spectrum[0].length;
+		for (int i = 0; i < t_peakCount; i++) {
+			if (a_chunk.remaining() < t_peakSize) {
+				a_out.write(a_chunk.array(), a_chunk.arrayOffset(), a_chunk.position());
+				a_chunk.clear();
+			}
+			if (a_iPrecision == 32) {
+				a_chunk.putFloat((float) a_spectrum[0][i]);
+				a_chunk.putFloat((float) a_spectrum[1][i]);
+			} else {
+				a_chunk.putDouble(a_spectrum[0][i]);
+				a_chunk.putDouble(a_spectrum[1][i]);
+			}
+		}
+		a_out.write(a_chunk.array(), a_chunk.arrayOffset(), a_chunk.position());
+		a_chunk.clear();
+	}
+
+	/**
+	 * Method that writes a spectrum as binary peaks encoded in base64 into the
+	 * stream. The stream is not closed.
+	 *
+	 * @see #writePeaks(double[][], int, ByteOrder, OutputStream, ByteBuffer)
+	 */
+	public static void encodeBase64(double[][] a_spectrum, int a_iPrecision, ByteOrder a_byteOrder, OutputStream a_out,
+			ByteBuffer a_chunk) throws IOException, IllegalArgumentException {
+		// closing the encoder writes the padding but must not close the stream
+		try (OutputStream t_encoder = Base64.getEncoder().wrap(new NonClosingOutputStream(a_out))) {
+			writePeaks(a_spectrum, a_iPrecision, a_byteOrder, t_encoder, a_chunk);
+		}
+	}
 
+	/**
+	 * Method that writes bytes encoded in base64 into the stream. The stream is
+	 * not closed.
+	 */
+	public static void encodeBase64(byte[] a_bytes, int a_offset, int a_length, OutputStream a_out)
+			throws IOException {
+		try (OutputStream t_encoder = Base64.getEncoder().wrap(new NonClosingOutputStream(a_out))) {
+			t_encoder.write(a_bytes, a_offset, a_length);
+		}
+	}
+
+	/**
+	 * Returns the byte order of the byteOrder attribute in mzXML.
+	 *
+	 * @param a_byteOrder
+	 *            value of the byteOrder attribute, "network" or "little"
+	 * @return ByteOrder, big endian unless the value is "little"
+	 */
+	public static ByteOrder getByteOrder(String a_byteOrder) {
+		if ("little".equalsIgnoreCase(a_byteOrder))
+			return ByteOrder.LITTLE_ENDIAN;
+		return ByteOrder.BIG_ENDIAN;
+	}
+
+	private static class NonClosingOutputStream extends FilterOutputStream {
+
+		public NonClosingOutputStream(OutputStream a_out) {
+			super(a_out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.out.flush();
+		}
+	}
+}
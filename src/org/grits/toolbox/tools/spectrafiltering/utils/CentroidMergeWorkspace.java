@@ -0,0 +1,107 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+/**
+ * Reusable buffers for
+ * {@link MassIntensityListUtils#addMassIntensityListForCentroid(double[], double[], int, double[], double[], int, double, boolean, CentroidMergeWorkspace)}.
+ * The buffers grow to the largest lists given so far and are reused by the
+ * following calls, so that no object is allocated in steady state. The resulting
+ * m/z - intensity list is kept in the workspace until the next call.
+ * <p>
+ * A workspace must not be shared by threads.
+ */
+public class CentroidMergeWorkspace {
+
+	// Result
+	double[] m_aMasses = new double[0];
+	double[] m_aIntens = new double[0];
+	int m_nSize = 0;
+
+	// Matches of the reference peaks in CSR style, the matched indexes of the
+	// peaks to add for i-th reference peak are stored in
+	// m_aMatchedJs[m_aMatchStarts[i]] to m_aMatchedJs[m_aMatchStarts[i] + m_aMatchCounts[i] - 1]
+	int[] m_aMatchStarts = new int[0];
+	int[] m_aMatchCounts = new int[0];
+	int[] m_aMatchedJs = new int[0];
+	boolean[] m_aIsMatchedJ = new boolean[0];
+
+	// Unsorted peaks and the order to sort them
+	double[] m_aTmpMasses = new double[0];
+	double[] m_aTmpIntens = new double[0];
+	int[] m_aOrder = new int[0];
+	int[] m_aOrderTmp = new int[0];
+
+	void ensureCapacity(int nRef, int nToAdd) {
+		if (this.m_aMatchStarts.length < nRef) {
+			int n = grow(this.m_aMatchStarts.length, nRef);
+			this.m_aMatchStarts = new int[n];
+			this.m_aMatchCounts = new int[n];
+		}
+		if (this.m_aMatchedJs.length < nToAdd) {
+			int n = grow(this.m_aMatchedJs.length, nToAdd);
+			this.m_aMatchedJs = new int[n];
+			this.m_aIsMatchedJ = new boolean[n];
+		}
+		int nTotal = nRef + nToAdd;
+		if (this.m_aTmpMasses.length < nTotal) {
+			int n = grow(this.m_aTmpMasses.length, nTotal);
+			this.m_aTmpMasses = new double[n];
+			this.m_aTmpIntens = new double[n];
+			this.m_aOrder = new int[n];
+			this.m_aOrderTmp = new int[n];
+		}
+	}
+
+	/**
+	 * Makes sure the result buffers can hold the given number of peaks. This must
+	 * be called after the reference list is read, since the reference list can be
+	 * the result buffers.
+	 */
+	void ensureResultCapacity(int nSize) {
+		if (this.m_aMasses.length < nSize) {
+			int n = grow(this.m_aMasses.length, nSize);
+			this.m_aMasses = new double[n];
+			this.m_aIntens = new double[n];
+		}
+	}
+
+	private static int grow(int nCurrent, int nRequired) {
+		return Math.max(nRequired, nCurrent + (nCurrent >> 1));
+	}
+
+	/**
+	 * Returns m/z values of the resulting list. Only the first {@link #getSize()}
+	 * values are valid.
+	 * @return double[] of m/z values
+	 */
+	public double[] getMasses() {
+		return this.m_aMasses;
+	}
+
+	/**
+	 * Returns intensities of the resulting list. Only the first {@link #getSize()}
+	 * values are valid.
+	 * @return double[] of intensities
+	 */
+	public double[] getIntensities() {
+		return this.m_aIntens;
+	}
+
+	/**
+	 * Returns the number of peaks in the resulting list.
+	 * @return the number of peaks
+	 */
+	public int getSize() {
+		return this.m_nSize;
+	}
+
+	/**
+	 * Copies the resulting list into a new m/z - intensity list.
+	 * @return double[][] of the m/z - intensity list
+	 */
+	public double[][] toMassIntensityList() {
+		double[][] dMassIntenList = new double[2][this.m_nSize];
+		System.arraycopy(this.m_aMasses, 0, dMassIntenList[0], 0, this.m_nSize);
+		System.arraycopy(this.m_aIntens, 0, dMassIntenList[1], 0, this.m_nSize);
+		return dMassIntenList;
+	}
+}
@@ -0,0 +1,68 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * OutputStream which counts the bytes written through it and optionally updates
+ * a MessageDigest with them, so that the byte offsets and the hash of an output
+ * are known without reading it again.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+	private long m_lCount = 0L;
+	private MessageDigest m_digest;
+
+	/**
+	 * Constructor.
+	 * @param a_out OutputStream to write the bytes
+	 * @param a_digest MessageDigest to update with the written bytes, or {@code null}
+	 */
+	public CountingOutputStream(OutputStream a_out, MessageDigest a_digest) {
+		super(a_out);
+		this.m_digest = a_digest;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.out.write(b);
+		this.m_lCount++;
+		if ( this.m_digest != null )
+			this.m_digest.update((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		this.out.write(b, off, len);
+		this.m_lCount += len;
+		if ( this.m_digest != null )
+			this.m_digest.update(b, off, len);
+	}
+
+	/**
+	 * Counts the bytes written into the underlying output directly, e.g. by
+	 * transferring them from a channel. The bytes are not added to the digest.
+	 * @param a_lLength the number of the bytes
+	 */
+	public void addCount(long a_lLength) {
+		this.m_lCount += a_lLength;
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 * @return the number of the written bytes
+	 */
+	public long getCount() {
+		return this.m_lCount;
+	}
+
+	/**
+	 * Returns the MessageDigest updated with the written bytes.
+	 * @return MessageDigest or {@code null} if not given
+	 */
+	public MessageDigest getDigest() {
+		return this.m_digest;
+	}
+}
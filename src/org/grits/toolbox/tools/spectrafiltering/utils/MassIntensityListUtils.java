@@ -1,12 +1,11 @@
 package org.grits.toolbox.tools.spectrafiltering.utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -116,97 +115,444 @@ public class MassIntensityListUtils {
 	 */
 	public static double[][] addMassIntensityListForCentroid(double[][] dMassIntenListRef,
 			double[][] dMassIntenListToAdd, double dAcc, boolean bIsPPM) {
-		int nMass_i = dMassIntenListRef[0].length;
-		int nMass_j = dMassIntenListToAdd[0].length;
+		CentroidMergeWorkspace workspace = new CentroidMergeWorkspace();
+		addMassIntensityListForCentroid(dMassIntenListRef[0], dMassIntenListRef[1], dMassIntenListRef[0].length,
+				dMassIntenListToAdd[0], dMassIntenListToAdd[1], dMassIntenListToAdd[0].length, dAcc, bIsPPM,
+				workspace);
+		return workspace.toMassIntensityList();
+	}
+
+	/**
+	 * Adds a m/z - intensity list to the other one for centroid mode using only
+	 * the primitive buffers of the given workspace. The resulting list is stored
+	 * in the workspace. The reference list can be the result of the same
+	 * workspace, so that lists can be added in turn without allocation.
+	 * <p>
+	 * Each peak to add is matched with at most one reference peak, since the
+	 * matching never goes back in the peaks to add. The m/z value of a reference
+	 * peak is averaged with the intensities of the matched peaks, and the
+	 * intensities are summed up.
+	 * 
+	 * @param dMassesRef
+	 *            m/z values of the list to be added
+	 * @param dIntensRef
+	 *            intensities of the list to be added
+	 * @param nMass_i
+	 *            the number of peaks in the list to be added
+	 * @param dMassesToAdd
+	 *            m/z values of the list to add
+	 * @param dIntensToAdd
+	 *            intensities of the list to add
+	 * @param nMass_j
+	 *            the number of peaks in the list to add
+	 * @param dAcc
+	 * @param bIsPPM
+	 * @param workspace
+	 *            CentroidMergeWorkspace to store the matches and the result
+	 * @return The number of peaks in the resulting list
+	 */
+	public static int addMassIntensityListForCentroid(double[] dMassesRef, double[] dIntensRef, int nMass_i,
+			double[] dMassesToAdd, double[] dIntensToAdd, int nMass_j, double dAcc, boolean bIsPPM,
+			CentroidMergeWorkspace workspace) {
+		workspace.ensureCapacity(nMass_i, nMass_j);
+		int[] aMatchStarts = workspace.m_aMatchStarts;
+		int[] aMatchCounts = workspace.m_aMatchCounts;
+		int[] aMatchedJs = workspace.m_aMatchedJs;
+		boolean[] aIsMatchedJ = workspace.m_aIsMatchedJ;
+		Arrays.fill(aMatchCounts, 0, nMass_i, 0);
+		Arrays.fill(aIsMatchedJ, 0, nMass_j, false);
 
 		// Search the indexes having the same m/z value
-		Map<Integer, List<Integer>> mapIToJ = new HashMap<>();
-		mapIToJ.put(0, new ArrayList<>());
-		Map<Integer, List<Integer>> mapJToI = new HashMap<>();
+		int nMatches = 0;
 		int i = 0, j = 0;
 		while (i < nMass_i && j < nMass_j) {
 			// Skip if zero intensity
-			if (dMassIntenListRef[1][i] == 0.0D) {
+			if (dIntensRef[i] == 0.0D) {
 				i++;
-				mapIToJ.put(i, new ArrayList<>());
 				continue;
 			}
 
-			double dMass_i = dMassIntenListRef[0][i];
-			double dMass_j = dMassIntenListToAdd[0][j];
+			double dMass_i = dMassesRef[i];
+			double dMass_j = dMassesToAdd[j];
 			// Compare the m/z values
-			// TODO: use the same accuracy as MS1 or not
 			if (isSamePeaks(dMass_i, dMass_j, dAcc, bIsPPM)) {
-				mapIToJ.get(i).add(j);
-				if (!mapJToI.containsKey(j))
-					mapJToI.put(j, new ArrayList<>());
-				mapJToI.get(j).add(i);
+				if (aMatchCounts[i] == 0)
+					aMatchStarts[i] = nMatches;
+				aMatchCounts[i]++;
+				aMatchedJs[nMatches++] = j;
+				aIsMatchedJ[j] = true;
 				j++;
 			} else if (dMass_i < dMass_j) {
 				i++;
-				mapIToJ.put(i, new ArrayList<>());
-				if (!mapIToJ.get(i).isEmpty())
-					j = mapIToJ.get(i).get(0);
-			} else if (dMass_i > dMass_j) {
+			} else {
 				j++;
 			}
 		}
 
-		// Calculate weights with distances between the corresponding peaks
-		Map<String, Double> mapIndexToWeight = new HashMap<>();
-		for (int J : mapJToI.keySet()) {
-
-			List<Integer> lIs = mapJToI.get(J);
-			if (lIs.size() == 1)
+		// Create new mass and intensity list in order of the reference peaks and
+		// the remaining peaks to add
+		double[] aTmpMasses = workspace.m_aTmpMasses;
+		double[] aTmpIntens = workspace.m_aTmpIntens;
+		int nNew = 0;
+		for (i = 0; i < nMass_i; i++) {
+			double dMass_i = dMassesRef[i];
+			double dInten_i = dIntensRef[i];
+			// Add intensities and average masses with its intensities
+			int iEnd = aMatchStarts[i] + aMatchCounts[i];
+			for (int k = aMatchStarts[i]; k < iEnd; k++) {
+				double dMass_j = dMassesToAdd[aMatchedJs[k]];
+				double dInten_j = dIntensToAdd[aMatchedJs[k]];
+				double dIntenTot = dInten_i + dInten_j;
+				dMass_i = dMass_i * dInten_i / dIntenTot + dMass_j * dInten_j / dIntenTot;
+				dInten_i = dIntenTot;
+			}
+			aTmpMasses[nNew] = dMass_i;
+			aTmpIntens[nNew] = dInten_i;
+			nNew++;
+		}
+		// Add remained j peaks
+		for (j = 0; j < nMass_j; j++) {
+			if (aIsMatchedJ[j])
 				continue;
+			aTmpMasses[nNew] = dMassesToAdd[j];
+			aTmpIntens[nNew] = dIntensToAdd[j];
+			nNew++;
+		}
 
-			Map<Integer, Double> mapIToWeight = new HashMap<>();
-			double dTotWeights = 0;
-			double dMass_j = dMassIntenListToAdd[0][J];
-			for (int I : lIs) {
-				double dMass_i = dMassIntenListRef[0][I];
-				double dDist = Math.abs(dMass_i - dMass_j);
-				double dWeight = Math.exp(-dDist);
-				mapIToWeight.put(I, dWeight);
-				dTotWeights += dWeight;
+		// Sort with their m/z values keeping the order of the same m/z values
+		int[] aOrder = sortIndexesWithMz(aTmpMasses, nNew, workspace.m_aOrder, workspace.m_aOrderTmp);
+		workspace.ensureResultCapacity(nNew);
+		for (int k = 0; k < nNew; k++) {
+			workspace.m_aMasses[k] = aTmpMasses[aOrder[k]];
+			workspace.m_aIntens[k] = aTmpIntens[aOrder[k]];
+		}
+		workspace.m_nSize = nNew;
+		return nNew;
+	}
+
+	/**
+	 * Sorts indexes of the given m/z values stably with a bottom-up merge sort.
+	 * 
+	 * @return One of the given buffers which contains the sorted indexes
+	 */
+	private static int[] sortIndexesWithMz(double[] aMasses, int n, int[] aOrder, int[] aOrderTmp) {
+		boolean bIsSorted = true;
+		for (int k = 0; k < n; k++) {
+			aOrder[k] = k;
+			if (k > 0 && aMasses[k - 1] > aMasses[k])
+				bIsSorted = false;
+		}
+		if (bIsSorted)
+			return aOrder;
+
+		int[] aFrom = aOrder;
+		int[] aTo = aOrderTmp;
+		for (int nWidth = 1; nWidth < n; nWidth *= 2) {
+			for (int iLeft = 0; iLeft < n; iLeft += 2 * nWidth) {
+				int iMid = Math.min(iLeft + nWidth, n);
+				int iRight = Math.min(iLeft + 2 * nWidth, n);
+				int p = iLeft, q = iMid, k = iLeft;
+				while (p < iMid && q < iRight) {
+					// Take the right one only if it is strictly smaller
+					if (aMasses[aFrom[q]] < aMasses[aFrom[p]])
+						aTo[k++] = aFrom[q++];
+					else
+						aTo[k++] = aFrom[p++];
+				}
+				while (p < iMid)
+					aTo[k++] = aFrom[p++];
+				while (q < iRight)
+					aTo[k++] = aFrom[q++];
 			}
-			// Put averaged weights
-			for (int I : lIs)
-				mapIndexToWeight.put(I + "-" + J, mapIToWeight.get(I) / dTotWeights);
+			int[] aSwap = aFrom;
+			aFrom = aTo;
+			aTo = aSwap;
 		}
+		return aFrom;
+	}
 
-		// Create new mass and intensity list
-		List<double[]> lMassIntenNew = new ArrayList<>();
-		for (i = 0; i < nMass_i; i++) {
+	/**
+	 * Merges m/z - intensity lists for centroid mode in a single pass. Peaks of all
+	 * lists are swept in order of m/z value with a k-way merge, and each peak is
+	 * added to the current consensus peak if the m/z values are the same within
+	 * the given accuracy. The m/z value of a consensus peak is averaged with the
+	 * intensities and the intensities are summed up.
+	 * <p>
+	 * The result is not the same as adding the lists in turn with
+	 * {@link #addMassIntensityListForCentroid(double[][], double[][], double, boolean)}.
+	 * A peak is compared with the running average of the consensus peak, so the
+	 * peaks can be chained beyond the accuracy of the first peak, peaks of the
+	 * same list can be merged and peaks with zero intensity are merged too.
+	 * 
+	 * @param lMassIntenLists
+	 *            List of m/z - intensity lists sorted with m/z values
+	 * @param dAcc
+	 *            An accuracy to judge the two m/z values are the same
+	 * @param bIsPPM
+	 *            A flag to consider the given accuracy as PPM value
+	 * @return A resulting m/z - intensity list
+	 */
+	public static double[][] mergeMassIntensityListsForCentroid(List<double[][]> lMassIntenLists, double dAcc,
+			boolean bIsPPM) {
+		int nLists = lMassIntenLists.size();
+		int[] aCursors = new int[nLists];
+		int nTotal = 0;
+		for (double[][] dMassIntenList : lMassIntenLists)
+			nTotal += dMassIntenList[0].length;
+
+		MergeHeap heap = new MergeHeap(lMassIntenLists, aCursors);
+		double[][] dMassIntenNew = new double[2][nTotal];
+		int nNew = 0;
+		double dSumInten = 0.0D;
+		double dSumMassInten = 0.0D;
+		double dMass = 0.0D;
+		boolean bHasPeak = false;
+		while (!heap.isEmpty()) {
+			int k = heap.poll();
+			double[][] dMassIntenList = lMassIntenLists.get(k);
+			double dMass_k = dMassIntenList[0][aCursors[k]];
+			double dInten_k = dMassIntenList[1][aCursors[k]];
+			aCursors[k]++;
+			heap.offer(k);
 
-			double dMass_i = dMassIntenListRef[0][i];
-			double dInten_i = dMassIntenListRef[1][i];
-			List<Integer> lJs = mapIToJ.get(i);
-			if (lJs == null || lJs.isEmpty()) {
-				lMassIntenNew.add(new double[] { dMass_i, dInten_i });
+			if (bHasPeak && isSamePeaks(dMass, dMass_k, dAcc, bIsPPM)) {
+				dSumInten += dInten_k;
+				dSumMassInten += dMass_k * dInten_k;
+				if (dSumInten != 0.0D)
+					dMass = dSumMassInten / dSumInten;
 				continue;
 			}
-			// Add intensities and average masses with its intensities
-			for (int J : lJs) {
-				double dMass_j = dMassIntenListToAdd[0][J];
-				double dInten_j = dMassIntenListToAdd[1][J];
-				// Weight
-				if (mapIndexToWeight.containsKey(i + "-" + J))
-					dInten_j *= mapIndexToWeight.get(i + "-" + J);
+			if (bHasPeak) {
+				dMassIntenNew[0][nNew] = dMass;
+				dMassIntenNew[1][nNew] = dSumInten;
+				nNew++;
+			}
+			bHasPeak = true;
+			dMass = dMass_k;
+			dSumInten = dInten_k;
+			dSumMassInten = dMass_k * dInten_k;
+		}
+		if (bHasPeak) {
+			dMassIntenNew[0][nNew] = dMass;
+			dMassIntenNew[1][nNew] = dSumInten;
+			nNew++;
+		}
+		if (nNew == nTotal)
+			return dMassIntenNew;
+		return new double[][] { Arrays.copyOf(dMassIntenNew[0], nNew), Arrays.copyOf(dMassIntenNew[1], nNew) };
+	}
 
-				double dIntenTot = dInten_i + dInten_j;
-				dMass_i = dMass_i * dInten_i / dIntenTot + dMass_j * dInten_j / dIntenTot;
-				dInten_i = dIntenTot;
+	/**
+	 * Merges m/z - intensity lists for profile mode in a single pass. The first
+	 * non-empty list is used as the reference, and intensities of the other lists
+	 * are interpolated at the m/z values of the reference. Each list is swept only
+	 * once, and the points which are not used for the interpolation are merged
+	 * into the result in order of m/z value.
+	 * <p>
+	 * The result is not the same as adding the lists in turn with
+	 * {@link #addMassIntensityListForProfile(double[][], double[][])}, which
+	 * interpolates each list at the points accumulated so far including the
+	 * remaining points of the former lists. Here the lists are interpolated only
+	 * at the points of the reference, and the remaining points are not added to
+	 * each other.
+	 * 
+	 * @param lMassIntenLists
+	 *            List of m/z - intensity lists sorted with m/z values
+	 * @return A resulting m/z - intensity list
+	 */
+	public static double[][] mergeMassIntensityListsForProfile(List<double[][]> lMassIntenLists) {
+		int nLists = lMassIntenLists.size();
+		int iRef = 0;
+		while (iRef < nLists - 1 && lMassIntenLists.get(iRef)[0].length == 0)
+			iRef++;
+		double[][] dMassIntenListRef = lMassIntenLists.get(iRef);
+		int nRef = dMassIntenListRef[0].length;
+
+		// Search maximum interval of each list except for big gap
+		double[] aMaxIntervals = new double[nLists];
+		int[] aUsedOffsets = new int[nLists + 1];
+		for (int k = 0; k < nLists; k++) {
+			double[][] dMassIntenList = lMassIntenLists.get(k);
+			int nMass = dMassIntenList[0].length;
+			double dMaxInterval = -1.0D;
+			for (int j = 1; j < nMass; j++)
+				if (dMassIntenList[1][j] != 0.0D || dMassIntenList[1][j - 1] != 0.0D)
+					dMaxInterval = Math.max(dMaxInterval, dMassIntenList[0][j] - dMassIntenList[0][j - 1]);
+			aMaxIntervals[k] = dMaxInterval;
+			aUsedOffsets[k + 1] = aUsedOffsets[k] + nMass;
+		}
+
+		// Interpolate the intensities of the other lists at the reference points
+		boolean[] aUsed = new boolean[aUsedOffsets[nLists]];
+		double[] aIntens = Arrays.copyOf(dMassIntenListRef[1], nRef);
+		int[] aCursors = new int[nLists];
+		for (int k = 0; k < nLists; k++) {
+			if (k == iRef)
+				continue;
+			double[][] dMassIntenListToAdd = lMassIntenLists.get(k);
+			int nMass = dMassIntenListToAdd[0].length;
+			double dMaxInterval = aMaxIntervals[k];
+			int iUsed = aUsedOffsets[k];
+			int j = 0;
+			for (int i = 0; i < nRef; i++) {
+				double dMassRef = dMassIntenListRef[0][i];
+				// Search nearest two points
+				while (j < nMass && dMassRef > dMassIntenListToAdd[0][j])
+					j++;
+				boolean bNoHigh = true;
+				boolean bNoLow = true;
+				double dMassHigh = -1.0D;
+				double dIntenHigh = 0.0D;
+				double dMassLow = -1.0D;
+				double dIntenLow = 0.0D;
+				if (j < nMass && Math.abs(dMassIntenListToAdd[0][j] - dMassRef) <= dMaxInterval) {
+					bNoHigh = false;
+					dMassHigh = dMassIntenListToAdd[0][j];
+					dIntenHigh = dMassIntenListToAdd[1][j];
+					aUsed[iUsed + j] = true;
+				}
+				if (dMassRef == dMassHigh) {
+					aIntens[i] += dIntenHigh;
+					continue;
+				}
+				if (j > 0 && Math.abs(dMassIntenListToAdd[0][j - 1] - dMassRef) <= dMaxInterval) {
+					bNoLow = false;
+					dMassLow = dMassIntenListToAdd[0][j - 1];
+					dIntenLow = dMassIntenListToAdd[1][j - 1];
+					aUsed[iUsed + j - 1] = true;
+				}
+				if (dMassRef == dMassLow) {
+					aIntens[i] += dIntenLow;
+					continue;
+				}
+				if (bNoHigh && bNoLow)
+					continue;
+				if (!bNoHigh && bNoLow)
+					dMassLow = dMassHigh - dMaxInterval;
+				if (bNoHigh && !bNoLow)
+					dMassHigh = dMassLow + dMaxInterval;
+
+				// Add intensity averaged with the distances
+				aIntens[i] += ((dIntenHigh - dIntenLow) / (dMassHigh - dMassLow) * (dMassRef - dMassLow)) + dIntenLow;
 			}
-			lMassIntenNew.add(new double[] { dMass_i, dInten_i });
 		}
-		// Add remained j peaks
-		for (j = 0; j < nMass_j; j++)
-			if (!mapJToI.containsKey(j))
-				lMassIntenNew.add(new double[] { dMassIntenListToAdd[0][j], dMassIntenListToAdd[1][j] });
-		sortMassIntenList(lMassIntenNew);
 
-		return convertMassIntensityList(lMassIntenNew);
+		// Merge the reference points and the remaining points of the other lists
+		int nNew = nRef;
+		for (int k = 0; k < nLists; k++)
+			if (k != iRef)
+				for (int j = aUsedOffsets[k]; j < aUsedOffsets[k + 1]; j++)
+					if (!aUsed[j])
+						nNew++;
+		double[][] dMassIntenNew = new double[2][nNew];
+		for (int k = 0; k < nLists; k++)
+			aCursors[k] = (k == iRef) ? lMassIntenLists.get(k)[0].length : skipUsedPoints(aUsed, aUsedOffsets[k], 0,
+					lMassIntenLists.get(k)[0].length);
+		MergeHeap heap = new MergeHeap(lMassIntenLists, aCursors);
+		int i = 0;
+		for (int n = 0; n < nNew; n++) {
+			if (i < nRef && (heap.isEmpty() || dMassIntenListRef[0][i] <= heap.peekMass())) {
+				dMassIntenNew[0][n] = dMassIntenListRef[0][i];
+				dMassIntenNew[1][n] = aIntens[i];
+				i++;
+				continue;
+			}
+			int k = heap.poll();
+			double[][] dMassIntenList = lMassIntenLists.get(k);
+			dMassIntenNew[0][n] = dMassIntenList[0][aCursors[k]];
+			dMassIntenNew[1][n] = dMassIntenList[1][aCursors[k]];
+			aCursors[k] = skipUsedPoints(aUsed, aUsedOffsets[k], aCursors[k] + 1, dMassIntenList[0].length);
+			heap.offer(k);
+		}
+		return dMassIntenNew;
+	}
+
+	private static int skipUsedPoints(boolean[] aUsed, int iOffset, int j, int nMass) {
+		while (j < nMass && aUsed[iOffset + j])
+			j++;
+		return j;
+	}
+
+	/**
+	 * Binary min-heap of list indexes keyed by the m/z values at the cursors of
+	 * the lists, which is used for k-way merge of m/z - intensity lists. A list is
+	 * not offered when its cursor reaches the end.
+	 */
+	private static class MergeHeap {
+		private final double[][] m_aMasses;
+		private final int[] m_aCursors;
+		private final int[] m_aHeap;
+		private int m_nSize = 0;
+
+		private MergeHeap(List<double[][]> lMassIntenLists, int[] aCursors) {
+			this.m_aMasses = new double[aCursors.length][];
+			for (int k = 0; k < aCursors.length; k++)
+				this.m_aMasses[k] = lMassIntenLists.get(k)[0];
+			this.m_aCursors = aCursors;
+			this.m_aHeap = new int[aCursors.length];
+			for (int k = 0; k < aCursors.length; k++)
+				this.offer(k);
+		}
+
+		private boolean isEmpty() {
+			return this.m_nSize == 0;
+		}
+
+		private double mass(int k) {
+			return this.m_aMasses[k][this.m_aCursors[k]];
+		}
+
+		private double peekMass() {
+			return this.mass(this.m_aHeap[0]);
+		}
+
+		private void offer(int k) {
+			if (this.m_aCursors[k] >= this.m_aMasses[k].length)
+				return;
+			int i = this.m_nSize++;
+			double dMass = this.mass(k);
+			while (i > 0) {
+				int iParent = (i - 1) >>> 1;
+				int kParent = this.m_aHeap[iParent];
+				double dMassParent = this.mass(kParent);
+				if (dMassParent < dMass || (dMassParent == dMass && kParent < k))
+					break;
+				this.m_aHeap[i] = kParent;
+				i = iParent;
+			}
+			this.m_aHeap[i] = k;
+		}
+
+		private int poll() {
+			int kTop = this.m_aHeap[0];
+			int kLast = this.m_aHeap[--this.m_nSize];
+			if (this.m_nSize == 0)
+				return kTop;
+			double dMass = this.mass(kLast);
+			int i = 0;
+			while (true) {
+				int iChild = 2 * i + 1;
+				if (iChild >= this.m_nSize)
+					break;
+				int kChild = this.m_aHeap[iChild];
+				double dMassChild = this.mass(kChild);
+				if (iChild + 1 < this.m_nSize) {
+					int kRight = this.m_aHeap[iChild + 1];
+					double dMassRight = this.mass(kRight);
+					if (dMassRight < dMassChild || (dMassRight == dMassChild && kRight < kChild)) {
+						iChild++;
+						kChild = kRight;
+						dMassChild = dMassRight;
+					}
+				}
+				if (dMass < dMassChild || (dMass == dMassChild && kLast < kChild))
+					break;
+				this.m_aHeap[i] = kChild;
+				i = iChild;
+			}
+			this.m_aHeap[i] = kLast;
+			return kTop;
+		}
 	}
 
 	private static void sortMassIntenList(List<double[]> lMassIntenList) {
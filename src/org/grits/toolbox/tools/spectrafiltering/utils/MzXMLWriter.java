@@ -1,12 +1,29 @@
 package org.grits.toolbox.tools.spectrafiltering.utils;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import org.systemsbiology.jrap.grits.stax.DataProcessingInfo;
 import org.systemsbiology.jrap.grits.stax.MSInstrumentInfo;
@@ -30,95 +47,265 @@ public class MzXMLWriter {
 	private int m_iCurrentScanNum;
 	private Map<Integer, Integer> m_mapOldToNewScanNum;
 
-	private int m_iCurrentOffset;
-	private Map<Integer, Integer> m_mapScanNumToOffset;
-
-	private BufferedWriter	bw	= null;
-
-	private class Element {
-		private String strTitle;
-		private List<String> lAttributeNames;
-		private List<String> lAttributeValues;
-		private List<Boolean> lNeedsAttributeLineBreak;
-		private String strText;
-		private List<Element> lContents;
-
-		public Element(String strTitle) {
-			this.strTitle = strTitle;
-			this.lAttributeNames = new ArrayList<>();
-			this.lAttributeValues = new ArrayList<>();
-			this.lNeedsAttributeLineBreak = new ArrayList<>();
-			this.strText = null;
-			this.lContents = new ArrayList<>();
-		}
+	/** Byte offsets of the scan tags indexed by the new scan numbers */
+	private long[] m_aScanOffsets;
+
+	/** Output of the file counting the written bytes */
+	private CountingOutputStream m_out = null;
+	/** Channel of the file to transfer the bytes copied from another file */
+	private FileChannel m_channelOut = null;
+	/** Whether the sha1 tag is written */
+	private boolean m_bWriteSha1 = true;
+
+	/** zlib compression level of the peaks, or -1 not to compress */
+	private int m_iCompressionLevel = -1;
+	/** The number of threads to serialize the scans */
+	private int m_nThreads = 1;
+	private ExecutorService m_executor = null;
+	/** Writers used on the worker threads to serialize the scans */
+	private ThreadLocal<MzXMLWriter> m_serializers = null;
+	/** Scans being serialized on the workers, in order of writing */
+	private ArrayDeque<PendingScan> m_dqPendingScans = new ArrayDeque<>();
+	/** Reusable buffer where a scan is serialized on a worker */
+	private ByteArrayOutputStream m_scanOut = null;
+
+	/** Peaks compressed with zlib */
+	private static class CompressedPeaks {
+		private byte[] aBytes;
+		private int nCompressedLen;
+	}
 
-		public void setAttribute(String name, String value) {
-			this.setAttribute(name, value, false);
-		}
+	/** Scan being serialized, whose scan numbers are assigned already */
+	private static class PendingScan {
+		private int iScanNum;
+		private Future<byte[]> futureBytes;
+	}
 
-		public void setAttribute(String name, String value, boolean needsLineBreak) {
-			this.lAttributeNames.add(name);
-			this.lAttributeValues.add(value);
-			this.lNeedsAttributeLineBreak.add(needsLineBreak);
-		}
+	private String m_strFileName;
+	/** Temporary file holding the scans until the deferred header is written */
+	private File m_fileBody;
+
+	/** Reusable buffer where the elements are serialized */
+	private StringBuilder m_sbContent = new StringBuilder(8192);
+	private byte[] m_aBytes = new byte[8192];
+	/** Indent for the attributes after a line break in the current start tag */
+	private int m_nAttributeIndent;
+	/** Reusable buffer where the binary peaks are written before Base64 encoding */
+	private ByteBuffer m_chunk = ByteBuffer.allocate(8192);
+	/** Reusable buffer to copy the bytes from another file when they are hashed */
+	private ByteBuffer m_copyBuffer = null;
+
+	private void appendIndent(int indent) {
+		for ( int i=0; i<indent; i++ )
+			this.m_sbContent.append(' ');
+	}
 
-		public void setText(String text) {
-			this.strText = text;
-		}
+	/**
+	 * Starts a start tag. Attributes must be added before closing the start tag
+	 * with {@link #closeStartTag()}.
+	 */
+	private void appendStartTag(int indent, String title) {
+		this.appendIndent(indent);
+		this.m_sbContent.append('<').append(title);
+		this.m_nAttributeIndent = indent + 1 + title.length();
+	}
 
-		public void addContent(Element content) {
-			this.lContents.add(content);
-		}
+	private void appendAttribute(String name, String value, boolean needsLineBreak) {
+		this.m_sbContent.append(' ').append(name).append("=\"").append(value).append('"');
+		if ( needsLineBreak )
+			this.appendAttributeLineBreak();
+	}
 
-		@Override
-		public String toString() {
-			return this.toStringWithIndent(0);
-		}
+	private void appendAttribute(String name, int value, boolean needsLineBreak) {
+		this.m_sbContent.append(' ').append(name).append("=\"").append(value).append('"');
+		if ( needsLineBreak )
+			this.appendAttributeLineBreak();
+	}
 
-		public String toStringWithIndent(int indent) {
-			String strIndent = "";
-			for ( int i=0; i<indent; i++ )
-				strIndent += ' ';
-			String content = strIndent+"<"+this.strTitle;
-			String strIndentForAttributes = "";
-			for ( int i=0; i<content.length(); i++ )
-				strIndentForAttributes += ' ';
-
-			// Add attributes
-			int nAttributes = this.lAttributeNames.size();
-			for ( int i=0; i<nAttributes; i++ ) {
-				String strAttribute = this.lAttributeNames.get(i)+"=\""+this.lAttributeValues.get(i)+"\"";
-				if ( this.lNeedsAttributeLineBreak.get(i) )
-					strAttribute += "\n"+strIndentForAttributes;
-				content += " "+strAttribute;
-			}
+	private void appendAttribute(String name, float value, boolean needsLineBreak) {
+		// Same as Float.toString(value)
+		this.m_sbContent.append(' ').append(name).append("=\"").append(value).append('"');
+		if ( needsLineBreak )
+			this.appendAttributeLineBreak();
+	}
 
-			content += ">";
+	private void appendAttributeLineBreak() {
+		this.m_sbContent.append('\n');
+		this.appendIndent(this.m_nAttributeIndent);
+	}
 
-			if ( this.strText != null ) {
-				content += this.strText+"</"+this.strTitle+">\n";
-				return content;
-			}
+	private void closeStartTag() {
+		this.m_sbContent.append(">\n");
+	}
 
-			content += "\n";
-			// Add child contents
-			for ( Element child : this.lContents ) {
-				content += child.toStringWithIndent(indent+2);
-			}
-			// Close tag
-			content += strIndent+"</"+this.strTitle+">\n";
+	private void appendEndTag(int indent, String title) {
+		this.appendIndent(indent);
+		this.m_sbContent.append("</").append(title).append(">\n");
+	}
 
-			return content;
+	/**
+	 * Encodes the given characters with ISO-8859-1 into the reusable byte array.
+	 * Characters out of ISO-8859-1 are replaced with '?', so that each character
+	 * is always encoded into one byte.
+	 * @return the number of the encoded bytes
+	 */
+	private int encode(CharSequence content) {
+		int nLength = content.length();
+		if ( this.m_aBytes.length < nLength )
+			this.m_aBytes = new byte[Math.max(nLength, this.m_aBytes.length * 2)];
+		for ( int i=0; i<nLength; i++ ) {
+			char c = content.charAt(i);
+			this.m_aBytes[i] = ( c < 256 )? (byte) c : (byte) '?';
 		}
+		return nLength;
+	}
+
+	/**
+	 * Returns the byte offset where the next content will be written, including
+	 * the content waiting in the buffer.
+	 */
+	private long getCurrentOffset() {
+		return this.m_out.getCount() + this.m_sbContent.length();
+	}
+
+	/**
+	 * Writes the serialized content into the file and clears the buffer.
+	 */
+	private void flushContent() throws IOException {
+		int nLength = this.encode(this.m_sbContent);
+		this.m_out.write(this.m_aBytes, 0, nLength);
+		this.m_sbContent.setLength(0);
+	}
+
+	/**
+	 * Writes the serialized content into the given buffer and clears the content.
+	 */
+	private void takeContentBytes(ByteArrayOutputStream out) {
+		int nLength = this.encode(this.m_sbContent);
+		out.write(this.m_aBytes, 0, nLength);
+		this.m_sbContent.setLength(0);
+	}
+
+	/**
+	 * Returns the serialized content as a String and clears the buffer.
+	 */
+	private String takeContent() {
+		String content = this.m_sbContent.toString();
+		this.m_sbContent.setLength(0);
+		return content;
+	}
+
+	/**
+	 * Sets zlib compression of the peaks. The compressed scans are serialized on
+	 * the threads given by {@link #setThreads(int)}.
+	 * @param a_iLevel compression level from 0 to 9, or -1 not to compress
+	 */
+	public void setCompression(int a_iLevel) {
+		if ( a_iLevel < -1 || a_iLevel > 9 )
+			throw new IllegalArgumentException("Compression level must be from 0 to 9, or -1: " + a_iLevel);
+		this.m_iCompressionLevel = a_iLevel;
+	}
+
+	/**
+	 * Sets the number of threads to serialize the scans given by
+	 * {@link #writeScan(Scan)}. With more than one thread, or with compression,
+	 * the scans are serialized into bytes on the worker threads while the
+	 * preceding scans are written, and the calling thread writes them in the
+	 * given order with their offsets. The scan numbers are assigned when the
+	 * scans are given, so that the precursor scan numbers are mapped correctly.
+	 * @param a_nThreads the number of threads
+	 */
+	public void setThreads(int a_nThreads) {
+		this.m_nThreads = Math.max(1, a_nThreads);
+	}
+
+	/**
+	 * Sets whether the sha1 tag is written. SHA-1 needs all bytes of the file
+	 * to pass through the writer, so the scans copied by
+	 * {@link #writeRawScan(RawScanElement, FileChannel)} are transferred between
+	 * the files directly only if the sha1 tag is not written.
+	 * @param a_bWriteSha1 {@code true} to write the sha1 tag (default)
+	 */
+	public void setWriteSha1(boolean a_bWriteSha1) {
+		this.m_bWriteSha1 = a_bWriteSha1;
 	}
 
 	public void createMZXML(String fileName) throws IOException {
-		bw = new BufferedWriter(new FileWriter(fileName));
+		this.openOutput(fileName, this.m_bWriteSha1);
 
+		this.m_strFileName = fileName;
+		this.m_fileBody = null;
 		this.m_iCurrentScanNum = 0;
 		this.m_mapOldToNewScanNum = new TreeMap<>();
-		this.m_iCurrentOffset = 0;
-		this.m_mapScanNumToOffset = new TreeMap<>();
+		this.m_aScanOffsets = new long[1024];
+		this.m_sbContent.setLength(0);
+	}
+
+	/**
+	 * Opens the output of the file. SHA-1 of the written bytes is computed if
+	 * needed for the sha1 tag.
+	 */
+	private void openOutput(String fileName, boolean needsDigest) throws IOException {
+		MessageDigest digest = null;
+		if ( needsDigest ) {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("SHA-1 is not available", e);
+			}
+		}
+		FileOutputStream out = new FileOutputStream(fileName);
+		this.m_channelOut = out.getChannel();
+		this.m_out = new CountingOutputStream(new BufferedOutputStream(out, 65536), digest);
+	}
+
+	/**
+	 * Creates mzXML file whose header is written after the scans. The scans are
+	 * spooled into a temporary file next to the given file until
+	 * {@link #writeDeferredHeader()} is called, so that the scan count and the
+	 * time range of msRun can be set after all scans have been written.
+	 * @param fileName String of the mzXML file path
+	 * @throws IOException
+	 */
+	public void createMZXMLWithDeferredHeader(String fileName) throws IOException {
+		File fileBody = new File(fileName + ".body");
+		this.createMZXML(fileBody.getPath());
+		// The spooled scans are hashed when they are copied
+		this.m_out.close();
+		this.openOutput(fileBody.getPath(), false);
+		this.m_strFileName = fileName;
+		this.m_fileBody = fileBody;
+	}
+
+	/**
+	 * Writes headers of mzXML and msRun followed by the spooled scans into the
+	 * file given by {@link #createMZXMLWithDeferredHeader(String)}.
+	 * {@link #setMsRun(int, String, String)} must be called before this.
+	 * @throws IOException
+	 */
+	public void writeDeferredHeader() throws IOException {
+		if ( this.m_fileBody == null )
+			throw new IllegalStateException("The header is not deferred.");
+		this.writePendingScans();
+		this.flushContent();
+		this.m_out.close();
+
+		this.openOutput(this.m_strFileName, this.m_bWriteSha1);
+		this.writeHeader();
+
+		// Shift offsets of the spooled scans with the length of header
+		long lShift = this.m_out.getCount();
+		for ( int i=1; i<=this.m_iCurrentScanNum; i++ )
+			this.m_aScanOffsets[i] += lShift;
+
+		try ( InputStream in = new FileInputStream(this.m_fileBody) ) {
+			byte[] buffer = new byte[65536];
+			int nRead;
+			while ( (nRead = in.read(buffer)) != -1 )
+				this.m_out.write(buffer, 0, nRead);
+		}
+		this.m_fileBody.delete();
+		this.m_fileBody = null;
 	}
 
 	public void setMsRun(int nScanCount, String strStartTime, String strEndTime) {
@@ -128,12 +315,29 @@ public class MzXMLWriter {
 	}
 
 	public void write(String content) throws IOException {
-		bw.write(content);
+		this.writePendingScans();
+		this.flushContent();
+		int nLength = this.encode(content);
+		this.m_out.write(this.m_aBytes, 0, nLength);
 	}
 
 	public void closeFile() throws IOException {
-		bw.flush();
-		bw.close();
+		// Discard the scans not written
+		for ( PendingScan pending : this.m_dqPendingScans )
+			pending.futureBytes.cancel(true);
+		this.m_dqPendingScans.clear();
+		if ( this.m_executor != null ) {
+			this.m_executor.shutdownNow();
+			this.m_executor = null;
+			this.m_serializers = null;
+		}
+		this.m_out.flush();
+		this.m_out.close();
+		// Discard the spooled scans if the header has not been written
+		if ( this.m_fileBody != null ) {
+			this.m_fileBody.delete();
+			this.m_fileBody = null;
+		}
 	}
 
 	/**
@@ -141,240 +345,475 @@ public class MzXMLWriter {
 	 * @return String of headers of mzXML and msRun
 	 */
 	public String getHeader() {
-		String content
-		= "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
-		+ "<mzXML xmlns=\"http://sashimi.sourceforge.net/schema_revision/mzXML_3.2\"\n"
-		+ "       xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
-		+ "       xsi:schemaLocation=\"http://sashimi.sourceforge.net/schema_revision/mzXML_3.2 http://sashimi.sourceforge.net/schema_revision/mzXML_3.2/mzXML_idx_3.2.xsd\">"
-		+ "\n" + getMsRunTag() + "\n";
-		this.m_iCurrentOffset += content.length() + 4;
-		return content;
+		this.appendHeader();
+		return this.takeContent();
 	}
 
-	private String getMsRunTag() {
-		return "  <msRun scanCount=\""+this.m_nScanCount+"\" startTime=\""+this.m_strStartTime+"\" endTime=\""+this.m_strEndTime+"\">";
+	/**
+	 * Writes headers of mzXML and msRun
+	 * @throws IOException
+	 */
+	public void writeHeader() throws IOException {
+		this.appendHeader();
+		this.flushContent();
 	}
 
+	private void appendHeader() {
+		this.m_sbContent
+			.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n")
+			.append("<mzXML xmlns=\"http://sashimi.sourceforge.net/schema_revision/mzXML_3.2\"\n")
+			.append("       xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n")
+			.append("       xsi:schemaLocation=\"http://sashimi.sourceforge.net/schema_revision/mzXML_3.2 http://sashimi.sourceforge.net/schema_revision/mzXML_3.2/mzXML_idx_3.2.xsd\">")
+			.append("\n");
+		this.appendMsRunTag();
+		this.m_sbContent.append("\n");
+	}
+
+	private void appendMsRunTag() {
+		this.m_sbContent.append("  <msRun scanCount=\"").append(this.m_nScanCount)
+			.append("\" startTime=\"").append(this.m_strStartTime)
+			.append("\" endTime=\"").append(this.m_strEndTime).append("\">");
+	}
+
+	/**
+	 * Returns the end tag of msRun, the index and the end tag of mzXML. Use
+	 * {@link #writeFooter()} instead when the scans are written with
+	 * {@link #writeScan(Scan)} and compressed, since the footer must follow
+	 * the scans being compressed.
+	 * @return String of the footer
+	 */
 	public String getFooter() {
-		String closeTag = "  </msRun>\n";
-		this.m_iCurrentOffset += closeTag.length();
+		if ( !this.m_dqPendingScans.isEmpty() )
+			throw new IllegalStateException("Scans being serialized must be written by writeFooter()");
+		this.appendFooter();
+		return this.takeContent();
+	}
+
+	/**
+	 * Writes the end tag of msRun, the index and the end tag of mzXML
+	 * @throws IOException
+	 */
+	public void writeFooter() throws IOException {
+		this.writePendingScans();
+		this.appendFooter();
+		this.flushContent();
+	}
+
+	private void appendFooter() {
+		this.m_sbContent.append("  </msRun>\n");
 		// Create index part
-		if ( !this.m_mapScanNumToOffset.isEmpty() ) {
-			Element elem = new Element("index");
-			elem.setAttribute("name", "scan");
-			for ( int iScan : this.m_mapScanNumToOffset.keySet() ) {
-				int index = this.m_mapScanNumToOffset.get(iScan);
-				Element elem_i = new Element("offset");
-				elem_i.setAttribute("id", Integer.toString(iScan));
-				elem_i.setText(Integer.toString(index));
-				elem.addContent(elem_i);
+		if ( this.m_iCurrentScanNum > 0 ) {
+			// Offset of "<index" after the indent
+			long lIndexOffset = this.getCurrentOffset() + 2;
+			this.appendStartTag(2, "index");
+			this.appendAttribute("name", "scan", false);
+			this.closeStartTag();
+			for ( int iScan=1; iScan<=this.m_iCurrentScanNum; iScan++ ) {
+				this.appendStartTag(4, "offset");
+				this.appendAttribute("id", iScan, false);
+				this.m_sbContent.append('>').append(this.m_aScanOffsets[iScan]).append("</offset>\n");
 			}
-			closeTag += elem.toStringWithIndent(2);
-			closeTag += "  <indexOffset>"+this.m_iCurrentOffset+"</indexOffset>\n";
+			this.appendEndTag(2, "index");
+			this.m_sbContent.append("  <indexOffset>").append(lIndexOffset).append("</indexOffset>\n");
 		}
-		// TODO: add sha1 tag
-		closeTag += "</mzXML>";
-
-		return closeTag;
+		if ( this.m_out.getDigest() != null ) {
+			// SHA-1 of the file through the start tag of sha1
+			this.m_sbContent.append("  <sha1>");
+			MessageDigest digest;
+			try {
+				digest = (MessageDigest) this.m_out.getDigest().clone();
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException("SHA-1 cannot be computed", e);
+			}
+			int nLength = this.encode(this.m_sbContent);
+			digest.update(this.m_aBytes, 0, nLength);
+			for ( byte b : digest.digest() )
+				this.m_sbContent.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			this.m_sbContent.append("</sha1>\n");
+		}
+		this.m_sbContent.append("</mzXML>");
 	}
 
 	public String getParentFile(ParentFile info) {
-		Element t_elem = new Element("parentFile");
-
-		t_elem.setAttribute("fileName", info.getURI());
-		t_elem.setAttribute("fileType", info.getType());
-		t_elem.setAttribute("fileSha1", info.getSha1());
-
-		String t_xml = t_elem.toStringWithIndent(4);
-		this.m_iCurrentOffset += t_xml.length();
-		return t_xml;
+		this.appendStartTag(4, "parentFile");
+		this.appendAttribute("fileName", info.getURI(), false);
+		this.appendAttribute("fileType", info.getType(), false);
+		this.appendAttribute("fileSha1", info.getSha1(), false);
+		this.closeStartTag();
+		this.appendEndTag(4, "parentFile");
+		return this.takeContent();
 	}
 
 	public String getMSInstrument(MSInstrumentInfo info, int id) throws IOException {
-		Element t_elemInst = new Element("msInstrument");
+		this.appendStartTag(4, "msInstrument");
+		this.appendAttribute("msInstrumentID", id, false);
+		this.closeStartTag();
+
+		this.appendCategoryElement(6, "msManufacturer", info.getManufacturer());
+		this.appendCategoryElement(6, "msModel", info.getModel());
+		this.appendCategoryElement(6, "msIonisation", info.getIonization());
+		this.appendCategoryElement(6, "msMassAnalyzer", info.getMassAnalyzer());
+		this.appendCategoryElement(6, "msDetector", info.getDetector());
+		this.appendSoftwareElement(6, info.getSoftwareInfo());
+
+		this.appendEndTag(4, "msInstrument");
+		return this.takeContent();
+	}
 
-		t_elemInst.setAttribute("msInstrumentID", Integer.toString(id));
+	private void appendCategoryElement(int indent, String category, String value) {
+		this.appendStartTag(indent, category);
+		this.appendAttribute("category", category, false);
+		this.appendAttribute("value", value, false);
+		this.closeStartTag();
+		this.appendEndTag(indent, category);
+	}
 
-		Element t_elem;
+	private void appendSoftwareElement(int indent, SoftwareInfo soft) {
+		this.appendStartTag(indent, "software");
+		this.appendAttribute("type", soft.type, false);
+		this.appendAttribute("name", soft.name, false);
+		this.appendAttribute("version", soft.version, false);
+		this.closeStartTag();
+		this.appendEndTag(indent, "software");
+	}
 
-		t_elem = new Element("msManufacturer");
-		t_elem.setAttribute("category", "msManufacturer");
-		t_elem.setAttribute("value", info.getManufacturer());
-		t_elemInst.addContent(t_elem);
+	public String getDataProcessing(DataProcessingInfo info) throws IOException {
+		this.appendStartTag(4, "dataProcessing");
+		if ( info.getIntensityCutoff() != -1 )
+			this.appendAttribute("intensityCutoff", Double.toString(info.getIntensityCutoff()), false);
 
-		t_elem = new Element("msModel");
-		t_elem.setAttribute("category", "msModel");
-		t_elem.setAttribute("value", info.getModel());
-		t_elemInst.addContent(t_elem);
+		if ( info.getCentroided() != DataProcessingInfo.UNKNOWN )
+			this.appendAttribute("centroided", info.getCentroided(), false);
 
-		t_elem = new Element("msIonisation");
-		t_elem.setAttribute("category", "msIonisation");
-		t_elem.setAttribute("value", info.getIonization());
-		t_elemInst.addContent(t_elem);
+		if ( info.getDeisotoped() != DataProcessingInfo.UNKNOWN )
+			this.appendAttribute("deisotoped", info.getDeisotoped(), false);
 
-		t_elem = new Element("msMassAnalyzer");
-		t_elem.setAttribute("category", "msMassAnalyzer");
-		t_elem.setAttribute("value", info.getMassAnalyzer());
-		t_elemInst.addContent(t_elem);
+		if ( info.getChargeDeconvoluted() != DataProcessingInfo.UNKNOWN )
+			this.appendAttribute("chargeDeconvoluted", info.getChargeDeconvoluted(), false);
 
-		t_elem = new Element("msDetector");
-		t_elem.setAttribute("category", "msDetector");
-		t_elem.setAttribute("value", info.getDetector());
-		t_elemInst.addContent(t_elem);
+		if ( info.getSpotIntegration() != DataProcessingInfo.UNKNOWN )
+			this.appendAttribute("spotIntegration", info.getSpotIntegration(), false);
+		this.closeStartTag();
 
-		t_elem = new Element("software");
-		t_elem.setAttribute("type", info.getSoftwareInfo().type);
-		t_elem.setAttribute("name", info.getSoftwareInfo().name);
-		t_elem.setAttribute("version", info.getSoftwareInfo().version);
-		t_elemInst.addContent(t_elem);
+		for ( SoftwareInfo soft : info.getSoftwareUsed() )
+			this.appendSoftwareElement(6, soft);
 
-		String content = t_elemInst.toStringWithIndent(4);
-		this.m_iCurrentOffset += content.length();
-		return content;
+		this.appendEndTag(4, "dataProcessing");
+		return this.takeContent();
 	}
 
-	public String getDataProcessing(DataProcessingInfo info) throws IOException {
-		Element t_elemParent = new Element("dataProcessing");
-
-		Element t_elem;
-		for ( SoftwareInfo soft : info.getSoftwareUsed() ) {
-			t_elem = new Element("software");
-			t_elem.setAttribute("type", soft.type);
-			t_elem.setAttribute("name", soft.name);
-			t_elem.setAttribute("version", soft.version);
-			t_elemParent.addContent(t_elem);
+	public String getScan(Scan scan) {
+		if ( !this.m_dqPendingScans.isEmpty() )
+			throw new IllegalStateException("Scans being serialized must be written by writeScan(Scan)");
+		int iScanNum = this.registerScan(scan.getHeader().getNum());
+		int iPrecursorScanNum = this.getNewPrecursorScanNum(scan.getHeader().getPrecursorScanNum());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressedPeaks compressed = null;
+		try {
+			if ( this.m_iCompressionLevel < 0 ) {
+				this.writePeaks(scan, out);
+			} else {
+				compressed = compressPeaks(scan, this.m_iCompressionLevel);
+				Base64SpectraUtil.encodeBase64(compressed.aBytes, 0, compressed.nCompressedLen, out);
+			}
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw IOException
+			throw new IllegalStateException(e);
 		}
+		this.recordScanOffset(iScanNum);
+		this.appendScanHead(scan, iScanNum, iPrecursorScanNum, compressed);
+		this.m_sbContent.append(new String(out.toByteArray(), StandardCharsets.ISO_8859_1));
+		this.appendScanTail();
+		return this.takeContent();
+	}
 
-		if ( info.getIntensityCutoff() != -1 )
-			t_elemParent.setAttribute("intensityCutoff", Double.toString(info.getIntensityCutoff()));
-
-		if ( info.getCentroided() != DataProcessingInfo.UNKNOWN )
-			t_elemParent.setAttribute("centroided", Integer.toString(info.getCentroided()));
+	/**
+	 * Writes the scan tag of the given Scan
+	 * @param scan Scan to write
+	 * @throws IOException
+	 */
+	public void writeScan(Scan scan) throws IOException {
+		int iScanNum = this.registerScan(scan.getHeader().getNum());
+		int iPrecursorScanNum = this.getNewPrecursorScanNum(scan.getHeader().getPrecursorScanNum());
+		if ( this.m_iCompressionLevel < 0 && this.m_nThreads == 1 ) {
+			// Encode the peaks straight into the file
+			this.recordScanOffset(iScanNum);
+			this.appendScanHead(scan, iScanNum, iPrecursorScanNum, null);
+			this.flushContent();
+			this.writePeaks(scan, this.m_out);
+			this.appendScanTail();
+			this.flushContent();
+			return;
+		}
 
-		if ( info.getDeisotoped() != DataProcessingInfo.UNKNOWN )
-			t_elemParent.setAttribute("deisotoped", Integer.toString(info.getDeisotoped()));
+		// Serialize the scan on the workers and write it when its turn comes
+		if ( this.m_executor == null ) {
+			this.m_executor = Executors.newFixedThreadPool(this.m_nThreads);
+			this.m_serializers = ThreadLocal.withInitial(MzXMLWriter::new);
+		}
+		ThreadLocal<MzXMLWriter> serializers = this.m_serializers;
+		int iLevel = this.m_iCompressionLevel;
+		PendingScan pending = new PendingScan();
+		pending.iScanNum = iScanNum;
+		pending.futureBytes = this.m_executor.submit(
+				() -> serializers.get().serializeScan(scan, iScanNum, iPrecursorScanNum, iLevel));
+		this.m_dqPendingScans.add(pending);
+		// Keep the number of scans in memory bounded
+		while ( this.m_dqPendingScans.size() > this.m_nThreads * 4 )
+			this.writePendingScan();
+	}
 
-		if ( info.getChargeDeconvoluted() != DataProcessingInfo.UNKNOWN )
-			t_elemParent.setAttribute("chargeDeconvoluted", Integer.toString(info.getChargeDeconvoluted()));
+	private void writePendingScans() throws IOException {
+		while ( !this.m_dqPendingScans.isEmpty() )
+			this.writePendingScan();
+	}
 
-		if ( info.getSpotIntegration() != DataProcessingInfo.UNKNOWN )
-			t_elemParent.setAttribute("spotIntegration", Integer.toString(info.getSpotIntegration()));
+	private void writePendingScan() throws IOException {
+		PendingScan pending = this.m_dqPendingScans.poll();
+		byte[] bytes;
+		try {
+			bytes = pending.futureBytes.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while serializing scan", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to serialize scan", e.getCause());
+		}
+		this.flushContent();
+		this.recordScanOffset(pending.iScanNum);
+		this.m_out.write(bytes);
+	}
 
-		String content = t_elemParent.toStringWithIndent(4);
-		this.m_iCurrentOffset += content.length();
-		return content;
+	/**
+	 * Serializes the scan into bytes. Called on the worker threads with the
+	 * writer of the thread.
+	 */
+	private byte[] serializeScan(Scan scan, int iScanNum, int iPrecursorScanNum, int iCompressionLevel)
+			throws IOException {
+		if ( this.m_scanOut == null )
+			this.m_scanOut = new ByteArrayOutputStream(65536);
+		this.m_scanOut.reset();
+		CompressedPeaks compressed = null;
+		if ( iCompressionLevel >= 0 )
+			compressed = compressPeaks(scan, iCompressionLevel);
+		this.appendScanHead(scan, iScanNum, iPrecursorScanNum, compressed);
+		this.takeContentBytes(this.m_scanOut);
+		if ( compressed == null )
+			this.writePeaks(scan, this.m_scanOut);
+		else
+			Base64SpectraUtil.encodeBase64(compressed.aBytes, 0, compressed.nCompressedLen, this.m_scanOut);
+		this.appendScanTail();
+		this.takeContentBytes(this.m_scanOut);
+		return this.m_scanOut.toByteArray();
 	}
 
-	public String getScan(Scan scan) {
+	/**
+	 * Assigns the new scan number to the given scan.
+	 * @return the new scan number
+	 */
+	private int registerScan(int iOldScanNum) {
 		// Scan number must start from 1 and increase sequentially!
 		this.m_iCurrentScanNum++;
-
-		ScanHeader scanHeader = scan.getHeader();
 		// Map old scan number to new one
-		this.m_mapOldToNewScanNum.put(scanHeader.getNum(), this.m_iCurrentScanNum);
+		this.m_mapOldToNewScanNum.put(iOldScanNum, this.m_iCurrentScanNum);
+		return this.m_iCurrentScanNum;
+	}
 
-		// Map scan number to the offset value of this scan tag which will be used as an index
-		this.m_mapScanNumToOffset.put(this.m_iCurrentScanNum, this.m_iCurrentOffset);
+	/**
+	 * Returns the new scan number of the precursor scan.
+	 * @return the new scan number, or -1 if the precursor scan is not written
+	 */
+	private int getNewPrecursorScanNum(int iScanNum) {
+		if ( iScanNum == -1 || !this.m_mapOldToNewScanNum.containsKey(iScanNum) )
+			return -1;
+		return this.m_mapOldToNewScanNum.get(iScanNum);
+	}
+
+	/**
+	 * Writes the scan element copied from the mzXML file without decoding the
+	 * peaks. Only the scan numbers are rewritten.
+	 * @param scan RawScanElement located in the source file
+	 * @param source FileChannel of the source file
+	 * @throws IOException
+	 */
+	public void writeRawScan(RawScanElement scan, FileChannel source) throws IOException {
+		this.writePendingScans();
+		int iScanNum = this.registerScan(scan.getScanNum());
+		int iPrecursorScanNum = this.getNewPrecursorScanNum(scan.getPrecursorScanNum());
+		this.recordScanOffset(iScanNum);
+		this.appendIndent(4);
+		this.m_sbContent.append(scan.getHead(iScanNum, iPrecursorScanNum));
+		this.flushContent();
+		this.copyBytes(source, scan.getPayloadOffset(), scan.getPayloadLength());
+		this.appendScanTail();
+		this.flushContent();
+	}
 
-		Element t_elemScan = new Element("scan");
+	/**
+	 * Copies the bytes from the given file. The bytes are transferred between
+	 * the channels directly unless they need to be hashed.
+	 */
+	private void copyBytes(FileChannel source, long lOffset, long lLength) throws IOException {
+		if ( this.m_out.getDigest() == null ) {
+			this.m_out.flush();
+			long lCopied = 0;
+			while ( lCopied < lLength ) {
+				long n = source.transferTo(lOffset + lCopied, lLength - lCopied, this.m_channelOut);
+				if ( n <= 0 )
+					throw new IOException("Unexpected end of the file at " + (lOffset + lCopied));
+				lCopied += n;
+			}
+			this.m_out.addCount(lLength);
+			return;
+		}
+		if ( this.m_copyBuffer == null )
+			this.m_copyBuffer = ByteBuffer.allocate(65536);
+		long lCopied = 0;
+		while ( lCopied < lLength ) {
+			this.m_copyBuffer.clear();
+			this.m_copyBuffer.limit((int) Math.min(this.m_copyBuffer.capacity(), lLength - lCopied));
+			int n = source.read(this.m_copyBuffer, lOffset + lCopied);
+			if ( n <= 0 )
+				throw new IOException("Unexpected end of the file at " + (lOffset + lCopied));
+			this.m_out.write(this.m_copyBuffer.array(), 0, n);
+			lCopied += n;
+		}
+	}
 
-		t_elemScan.setAttribute("num", Integer.toString(this.m_iCurrentScanNum), true);
-		t_elemScan.setAttribute("msLevel", Integer.toString(scanHeader.getMsLevel()), true);
-		t_elemScan.setAttribute("peaksCount", Integer.toString(scan.getMassIntensityList()[0].length), true);
+	/**
+	 * Maps the scan number to the offset value of "&lt;scan" after the indent
+	 * which will be used as an index.
+	 */
+	private void recordScanOffset(int iScanNum) {
+		if ( iScanNum >= this.m_aScanOffsets.length )
+			this.m_aScanOffsets = Arrays.copyOf(this.m_aScanOffsets, iScanNum * 2);
+		this.m_aScanOffsets[iScanNum] = this.getCurrentOffset() + 4;
+	}
+
+	/**
+	 * Appends the scan tag until the start tag of the peaks. The peaks and
+	 * {@link #appendScanTail()} must follow.
+	 * @param compressed peaks compressed with zlib, or {@code null} if not compressed
+	 */
+	private void appendScanHead(Scan scan, int iScanNum, int iPrecursorScanNum, CompressedPeaks compressed) {
+		ScanHeader scanHeader = scan.getHeader();
+
+		this.appendStartTag(4, "scan");
+
+		this.appendAttribute("num", iScanNum, true);
+		this.appendAttribute("msLevel", scanHeader.getMsLevel(), true);
+		this.appendAttribute("peaksCount", scan.getMassIntensityList()[0].length, true);
 		if ( scanHeader.getPolarity() != null || !scanHeader.getPolarity().isEmpty() )
-			t_elemScan.setAttribute("polarity", scanHeader.getPolarity(), true);
+			this.appendAttribute("polarity", scanHeader.getPolarity(), true);
 		if ( scanHeader.getScanType() != null || !scanHeader.getScanType().isEmpty() )
-			t_elemScan.setAttribute("scanType", scanHeader.getScanType(), true);
+			this.appendAttribute("scanType", scanHeader.getScanType(), true);
 		if ( scanHeader.getCentroided() != -1 )
-			t_elemScan.setAttribute("centroided", Integer.toString(scanHeader.getCentroided()), true);
+			this.appendAttribute("centroided", scanHeader.getCentroided(), true);
 		if ( scanHeader.getDeisotoped() != -1 )
-			t_elemScan.setAttribute("deisotoped", Integer.toString(scanHeader.getDeisotoped()), true);
+			this.appendAttribute("deisotoped", scanHeader.getDeisotoped(), true);
 		if ( scanHeader.getChargeDeconvoluted() != -1 )
-			t_elemScan.setAttribute("chargeDeconvoluted", Integer.toString(scanHeader.getChargeDeconvoluted()), true);
+			this.appendAttribute("chargeDeconvoluted", scanHeader.getChargeDeconvoluted(), true);
 		if ( scanHeader.getRetentionTime() != null || !scanHeader.getRetentionTime().isEmpty() )
-			t_elemScan.setAttribute("retentionTime", scanHeader.getRetentionTime(), true);
+			this.appendAttribute("retentionTime", scanHeader.getRetentionTime(), true);
 		if ( scanHeader.getIonisationEnergy() != -1f )
-			t_elemScan.setAttribute("ionizationEnergy", Float.toString(scanHeader.getIonisationEnergy()), true);
+			this.appendAttribute("ionizationEnergy", scanHeader.getIonisationEnergy(), true);
 		if ( scanHeader.getCollisionEnergy() != -1f )
-			t_elemScan.setAttribute("collisionEnergy", Float.toString(scanHeader.getCollisionEnergy()), true);
+			this.appendAttribute("collisionEnergy", scanHeader.getCollisionEnergy(), true);
 
 		if ( scanHeader.getStartMz() != -1f )
-			t_elemScan.setAttribute("startMz", Float.toString(scanHeader.getStartMz()), true);
+			this.appendAttribute("startMz", scanHeader.getStartMz(), true);
 		if ( scanHeader.getEndMz() != -1f )
-			t_elemScan.setAttribute("endMz", Float.toString(scanHeader.getEndMz()), true);
+			this.appendAttribute("endMz", scanHeader.getEndMz(), true);
 		if ( scanHeader.getLowMz() != -1f )
-			t_elemScan.setAttribute("lowMz", Float.toString(scanHeader.getLowMz()), true);
+			this.appendAttribute("lowMz", scanHeader.getLowMz(), true);
 		if ( scanHeader.getHighMz() != -1f )
-			t_elemScan.setAttribute("highMz", Float.toString(scanHeader.getHighMz()), true);
+			this.appendAttribute("highMz", scanHeader.getHighMz(), true);
 		if ( scanHeader.getBasePeakMz() != -1f )
-			t_elemScan.setAttribute("basePeakMz", Float.toString(scanHeader.getBasePeakMz()), true);
+			this.appendAttribute("basePeakMz", scanHeader.getBasePeakMz(), true);
 		if ( scanHeader.getBasePeakIntensity() != -1f )
-			t_elemScan.setAttribute("basePeakIntensity", Float.toString(scanHeader.getBasePeakIntensity()), true);
+			this.appendAttribute("basePeakIntensity", scanHeader.getBasePeakIntensity(), true);
 		if ( scanHeader.getTotIonCurrent() != -1f )
-			t_elemScan.setAttribute("totIonCurrent", Float.toString(scanHeader.getTotIonCurrent()));
+			this.appendAttribute("totIonCurrent", scanHeader.getTotIonCurrent(), false);
+		this.closeStartTag();
 
 		// precursorMz
 		if ( scanHeader.getPrecursorIntensity() != -1f ) {
-			Element t_elemPrecuror = new Element("precursorMz");
+			this.appendStartTag(6, "precursorMz");
 
 			// Do not set if precursor scan is not exist
-			int iScanNum = scanHeader.getPrecursorScanNum();
-			if ( iScanNum != -1 && this.m_mapOldToNewScanNum.containsKey(iScanNum) ) {
-				// Replace old scan number to new one
-				iScanNum = this.m_mapOldToNewScanNum.get(iScanNum);
-				t_elemPrecuror.setAttribute("precursorScanNum", Integer.toString(iScanNum));
-			}
+			if ( iPrecursorScanNum != -1 )
+				this.appendAttribute("precursorScanNum", iPrecursorScanNum, false);
 
-			t_elemPrecuror.setAttribute("precursorIntensity", Float.toString(scanHeader.getPrecursorIntensity()));
+			this.appendAttribute("precursorIntensity", scanHeader.getPrecursorIntensity(), false);
 
 			if ( scanHeader.getPrecursorCharge() != -1 )
-				t_elemPrecuror.setAttribute("precursorCharge", Integer.toString(scanHeader.getPrecursorCharge()));
+				this.appendAttribute("precursorCharge", scanHeader.getPrecursorCharge(), false);
 			// TODO: possible charges
 			if ( scanHeader.getActivationMethod() != null || !scanHeader.getActivationMethod().isEmpty())
-				t_elemPrecuror.setAttribute("activationMethod", scanHeader.getActivationMethod());
+				this.appendAttribute("activationMethod", scanHeader.getActivationMethod(), false);
 			// TODO: window wideness
-			
-			t_elemPrecuror.setText(Double.toString(scanHeader.getPrecursorMz()));
 
-			t_elemScan.addContent(t_elemPrecuror);
+			// Same as Double.toString(precursorMz)
+			this.m_sbContent.append('>').append((double) scanHeader.getPrecursorMz()).append("</precursorMz>\n");
+		}
+
+		this.appendStartTag(6, "peaks");
+
+		if ( compressed != null ) {
+			this.appendAttribute("compressionType", "zlib", true);
+			this.appendAttribute("compressedLen", compressed.nCompressedLen, true);
+		} else {
+			this.appendAttribute("compressionType", "none", true);
+			this.appendAttribute("compressedLen", 0, true);
 		}
-		
-		Element t_elementPeaks = new Element("peaks");
-
-		// Do not compress
-//		t_elementPeaks.setAttribute("compressionType", scanHeader.getCompressionType());
-//		t_elementPeaks.setAttribute("compressedLen", Integer.toString(scanHeader.getCompressedLen()));
-		t_elementPeaks.setAttribute("compressionType", "none", true);
-		t_elementPeaks.setAttribute("compressedLen", "0", true);
 		if ( scanHeader.getPrecision() != -1 )
-			t_elementPeaks.setAttribute("precision", Integer.toString(scanHeader.getPrecision()), true);
-		t_elementPeaks.setAttribute("byteOrder", scanHeader.getByteOrder(), true);
-		t_elementPeaks.setAttribute("contentType", scanHeader.getContentType());
-
-		// Create Base64 string
-		t_elementPeaks.setText(createBase64String(scan.getMassIntensityList()));
-		
-		// add the precursor and peak tag to the scan tag
-		t_elemScan.addContent(t_elementPeaks);
-
-		String content = t_elemScan.toStringWithIndent(4);
-//		content = addIndentToAttributes(content, new String[] {"precursorMz"});
-		this.m_iCurrentOffset += content.length();
-		return content;
+			this.appendAttribute("precision", scanHeader.getPrecision(), true);
+		this.appendAttribute("byteOrder", scanHeader.getByteOrder(), true);
+		this.appendAttribute("contentType", scanHeader.getContentType(), false);
+
+		this.m_sbContent.append('>');
+	}
+
+	private void appendScanTail() {
+		this.m_sbContent.append("</peaks>\n");
+		this.appendEndTag(4, "scan");
 	}
-	
-	private String createBase64String(double[][] a_peaklist) {
-		int size = a_peaklist[0].length;
-		float[][] t_spectra = new float[2][size];
-		for (int i = 0; i < size; i++) {
-			Double mzDouble = a_peaklist[0][i];
-			Double intensityDouble = a_peaklist[1][i];
-			
-			t_spectra[0][i] = mzDouble.floatValue();
-			t_spectra[1][i] = intensityDouble.floatValue();
-		}
 
-		String encode64 = Base64SpectraUtil.encodeBase64(t_spectra);
-		return encode64;
+	/**
+	 * Writes the peaks of the scan encoded in Base64 with the precision and the
+	 * byte order of the scan header.
+	 */
+	private void writePeaks(Scan scan, OutputStream out) throws IOException {
+		ScanHeader scanHeader = scan.getHeader();
+		Base64SpectraUtil.encodeBase64(scan.getMassIntensityList(), getPrecision(scanHeader),
+				Base64SpectraUtil.getByteOrder(scanHeader.getByteOrder()), out, this.m_chunk);
+	}
+
+	private static int getPrecision(ScanHeader scanHeader) {
+		// 32 bits is the default precision of mzXML
+		return ( scanHeader.getPrecision() == 64 )? 64 : 32;
+	}
+
+	/**
+	 * Compresses the peaks of the scan with zlib. Called on the worker threads.
+	 */
+	private static CompressedPeaks compressPeaks(Scan scan, int a_iCompressionLevel) throws IOException {
+		ScanHeader scanHeader = scan.getHeader();
+		int iPrecision = getPrecision(scanHeader);
+		ByteOrder byteOrder = Base64SpectraUtil.getByteOrder(scanHeader.getByteOrder());
+		ByteArrayOutputStream out = new ByteArrayOutputStream(scan.getMassIntensityList()[0].length * iPrecision / 4 + 64);
+		Deflater deflater = new Deflater(a_iCompressionLevel);
+		try {
+			try ( DeflaterOutputStream zout = new DeflaterOutputStream(out, deflater, 8192) ) {
+				Base64SpectraUtil.writePeaks(scan.getMassIntensityList(), iPrecision, byteOrder, zout,
+						ByteBuffer.allocate(8192));
+			}
+		} finally {
+			deflater.end();
+		}
+		CompressedPeaks compressed = new CompressedPeaks();
+		compressed.aBytes = out.toByteArray();
+		compressed.nCompressedLen = compressed.aBytes.length;
+		return compressed;
 	}
 }
@@ -0,0 +1,242 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import org.grits.toolbox.tools.spectrafiltering.om.PickerTarget;
+
+/**
+ * Matches the peaks of a scan against neutral losses from its precursor ion.
+ * The m/z value of each target is the mass of the loss, and the fragment ion
+ * is expected at the m/z value of the precursor ion minus the loss, either
+ * only at the charge state of the precursor ion or at every charge state from
+ * 1 to it. The tolerance and the cutoff of the targets are applied to the
+ * fragment ion in the same way as {@link PeakTargetMatcher}.
+ * <p>
+ * The losses are sorted with their masses in descending order, so that the
+ * windows of the fragment ions of one charge state are in ascending order of
+ * m/z and merged with the m/z sorted peaks by two pointers, where the pointer
+ * of the peaks jumps to each window by binary search.
+ */
+public class NeutralLossMatcher {
+
+	/** Mass of a proton */
+	public static final double PROTON_MASS = 1.00727646688D;
+	/** Relative margin of the header values against rounding errors */
+	private static final double HEADER_MARGIN = 1.0E-6D;
+
+	private int m_nLosses;
+	private boolean m_bAllChargeStates;
+	/** Indexes of the losses in descending order of the masses */
+	private int[] m_aLossIndexes;
+	private double[] m_aMasses;
+	private double[] m_aAccuracies;
+	private boolean[] m_aIsPPM;
+	private double[] m_aCutOffs;
+	private boolean[] m_aIsPercentage;
+	private boolean m_bHasPercentage = false;
+	private double m_dLowestAbsoluteCutOff = Double.POSITIVE_INFINITY;
+	private double m_dMaxAccuracy = 0;
+	private double m_dMaxAccuracyPPM = 0;
+
+	/**
+	 * Constructor.
+	 * @param a_lLosses List of the losses, whose values must be all set and
+	 *        whose m/z values are the masses of the losses
+	 * @param a_bAllChargeStates true to look for the fragment ions at every
+	 *        charge state from 1 to the one of the precursor ion, false for only
+	 *        the charge state of the precursor ion
+	 */
+	public NeutralLossMatcher(List<PickerTarget> a_lLosses, boolean a_bAllChargeStates) {
+		this.m_nLosses = a_lLosses.size();
+		this.m_bAllChargeStates = a_bAllChargeStates;
+
+		Integer[] aOrder = new Integer[this.m_nLosses];
+		for ( int i = 0; i < this.m_nLosses; i++ )
+			aOrder[i] = i;
+		Arrays.sort(aOrder, Comparator.comparingDouble(i -> -a_lLosses.get(i).getMzValue()));
+
+		this.m_aLossIndexes = new int[this.m_nLosses];
+		this.m_aMasses = new double[this.m_nLosses];
+		this.m_aAccuracies = new double[this.m_nLosses];
+		this.m_aIsPPM = new boolean[this.m_nLosses];
+		this.m_aCutOffs = new double[this.m_nLosses];
+		this.m_aIsPercentage = new boolean[this.m_nLosses];
+		for ( int k = 0; k < this.m_nLosses; k++ ) {
+			int i = aOrder[k];
+			PickerTarget loss = a_lLosses.get(i);
+			this.m_aLossIndexes[k] = i;
+			this.m_aMasses[k] = loss.getMzValue();
+			this.m_aAccuracies[k] = loss.getAccuracy();
+			this.m_aIsPPM[k] = loss.getPPM();
+			this.m_aCutOffs[k] = loss.getCutOffValue();
+			this.m_aIsPercentage[k] = loss.getPercentage();
+			if ( this.m_aIsPPM[k] )
+				this.m_dMaxAccuracyPPM = Math.max(this.m_dMaxAccuracyPPM, this.m_aAccuracies[k]);
+			else
+				this.m_dMaxAccuracy = Math.max(this.m_dMaxAccuracy, this.m_aAccuracies[k]);
+			if ( this.m_aIsPercentage[k] )
+				this.m_bHasPercentage = true;
+			else
+				this.m_dLowestAbsoluteCutOff = Math.min(this.m_dLowestAbsoluteCutOff, this.m_aCutOffs[k]);
+		}
+	}
+
+	/**
+	 * Returns the number of the losses.
+	 * @return the number of the losses
+	 */
+	public int getLossCount() {
+		return this.m_nLosses;
+	}
+
+	/**
+	 * Returns the charge state used for the precursor ion, which is 1 if the
+	 * charge state is not known.
+	 */
+	private static int getCharge(int a_iPrecursorCharge) {
+		return ( a_iPrecursorCharge > 0 )? a_iPrecursorCharge : 1;
+	}
+
+	/**
+	 * Returns the m/z value of the fragment ion of a loss.
+	 */
+	private static double getFragmentMz(double a_dPrecursorMass, double a_dLoss, int a_iCharge) {
+		return (a_dPrecursorMass - a_dLoss) / a_iCharge + PROTON_MASS;
+	}
+
+	private double getTolerance(int a_k, double a_dMz) {
+		if ( this.m_aIsPPM[a_k] )
+			return (a_dMz / 1000000) * this.m_aAccuracies[a_k];
+		return this.m_aAccuracies[a_k];
+	}
+
+	/**
+	 * Returns the widest tolerance of all losses at the m/z value.
+	 */
+	private double getMaxTolerance(double a_dMz) {
+		return Math.max(this.m_dMaxAccuracy, (a_dMz / 1000000) * this.m_dMaxAccuracyPPM);
+	}
+
+	/**
+	 * Checks whether any loss can be hit by a scan with the given header values,
+	 * without decoding the peaks. No loss can be hit if all windows of the
+	 * fragment ions are out of the m/z range of the peaks, or if all cutoffs are
+	 * absolute and higher than the base peak.
+	 * @param a_dPrecursorMz m/z value of the precursor ion
+	 * @param a_iPrecursorCharge charge state of the precursor ion, or 0 or less
+	 *        if not known
+	 * @param a_fLowMz the lowest m/z value of the peaks, or -1 if not available
+	 * @param a_fHighMz the highest m/z value of the peaks, or -1 if not available
+	 * @param a_fBasePeakIntensity intensity of the base peak, or -1 if not available
+	 * @return true if any loss can be hit
+	 */
+	public boolean canHit(double a_dPrecursorMz, int a_iPrecursorCharge,
+			float a_fLowMz, float a_fHighMz, float a_fBasePeakIntensity) {
+		if ( this.m_nLosses == 0 )
+			return false;
+		if ( !this.m_bHasPercentage && a_fBasePeakIntensity != -1f
+				&& this.m_dLowestAbsoluteCutOff > a_fBasePeakIntensity * (1 + HEADER_MARGIN) )
+			return false;
+
+		int iCharge = getCharge(a_iPrecursorCharge);
+		double dPrecursorMass = (a_dPrecursorMz - PROTON_MASS) * iCharge;
+		// Highest fragment is of the lightest loss at charge 1, lowest is of the heaviest loss
+		int iLowestCharge = ( this.m_bAllChargeStates )? 1 : iCharge;
+		double dHighest = getFragmentMz(dPrecursorMass, this.m_aMasses[this.m_nLosses - 1], iLowestCharge);
+		double dLowest = getFragmentMz(dPrecursorMass, this.m_aMasses[0], iCharge);
+		if ( a_fLowMz != -1f && dHighest + this.getMaxTolerance(dHighest) < a_fLowMz * (1 - HEADER_MARGIN) )
+			return false;
+		if ( a_fHighMz != -1f && dLowest - this.getMaxTolerance(dLowest) > a_fHighMz * (1 + HEADER_MARGIN) )
+			return false;
+		return true;
+	}
+
+	/**
+	 * Matches the peaks against all losses.
+	 * @param a_dPrecursorMz m/z value of the precursor ion
+	 * @param a_iPrecursorCharge charge state of the precursor ion, or 0 or less
+	 *        if not known
+	 * @param a_peaks double matrix of the peaks sorted with m/z values, the first
+	 *        row (double[0]) are the m/z values and the second row (double[1])
+	 *        are the intensity values
+	 * @return BitSet of the indexes of the hit losses in the given list
+	 */
+	public BitSet match(double a_dPrecursorMz, int a_iPrecursorCharge, double[][] a_peaks) {
+		BitSet hits = new BitSet(this.m_nLosses);
+		double[] aMzs = a_peaks[0];
+		double[] aIntensities = a_peaks[1];
+		int nPeaks = aMzs.length;
+		if ( nPeaks == 0 )
+			return hits;
+
+		int iCharge = getCharge(a_iPrecursorCharge);
+		double dPrecursorMass = (a_dPrecursorMz - PROTON_MASS) * iCharge;
+		int iLowestCharge = ( this.m_bAllChargeStates )? 1 : iCharge;
+		// Highest peak is found only when a cutoff in percentage is needed
+		double dHighestIntensity = Double.NaN;
+		for ( int z = iLowestCharge; z <= iCharge; z++ ) {
+			int iPeak = 0;
+			double dPreviousMinMz = Double.NEGATIVE_INFINITY;
+			for ( int k = 0; k < this.m_nLosses; k++ ) {
+				if ( hits.get(this.m_aLossIndexes[k]) )
+					continue;
+				double dMz = getFragmentMz(dPrecursorMass, this.m_aMasses[k], z);
+				if ( dMz <= 0 )
+					continue;
+				double dTolerance = this.getTolerance(k, dMz);
+				double dMinMz = dMz - dTolerance;
+				// First peak in the window, which goes back only if a wider tolerance
+				// moves the lower bound of the window below the previous one
+				if ( dMinMz < dPreviousMinMz )
+					iPeak = 0;
+				iPeak = lowerBound(aMzs, iPeak, nPeaks, dMinMz);
+				dPreviousMinMz = dMinMz;
+				if ( iPeak == nPeaks )
+					continue;
+				double dMaxMz = dMz + dTolerance;
+				if ( aMzs[iPeak] > dMaxMz )
+					continue;
+
+				double dCutOff = this.m_aCutOffs[k];
+				if ( this.m_aIsPercentage[k] ) {
+					if ( Double.isNaN(dHighestIntensity) )
+						dHighestIntensity = getHighestIntensity(aIntensities);
+					dCutOff = dHighestIntensity * dCutOff / 100;
+				}
+				for ( int i = iPeak; i < nPeaks && aMzs[i] <= dMaxMz; i++ ) {
+					if ( aIntensities[i] < dCutOff )
+						continue;
+					hits.set(this.m_aLossIndexes[k]);
+					break;
+				}
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Returns the index of the first value not less than the key in the range.
+	 */
+	private static int lowerBound(double[] a_aValues, int a_iFrom, int a_iTo, double a_dKey) {
+		int iLow = a_iFrom;
+		int iHigh = a_iTo;
+		while ( iLow < iHigh ) {
+			int iMid = (iLow + iHigh) >>> 1;
+			if ( a_aValues[iMid] < a_dKey )
+				iLow = iMid + 1;
+			else
+				iHigh = iMid;
+		}
+		return iLow;
+	}
+
+	private static double getHighestIntensity(double[] a_aIntensities) {
+		double dHighestIntensity = a_aIntensities[0];
+		for ( int i = 1; i < a_aIntensities.length; i++ )
+			dHighestIntensity = Math.max(dHighestIntensity, a_aIntensities[i]);
+		return dHighestIntensity;
+	}
+}
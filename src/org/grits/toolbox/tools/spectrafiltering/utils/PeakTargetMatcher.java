@@ -0,0 +1,211 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import org.grits.toolbox.tools.spectrafiltering.om.PickerTarget;
+
+/**
+ * Matches the peaks of a scan against a list of targets at once. A target is
+ * hit if any peak in its m/z window has the intensity of at least its cutoff,
+ * where a cutoff in percentage is relative to the highest peak of the scan.
+ * <p>
+ * The targets are sorted with the lower bounds of their windows, and the m/z
+ * sorted peaks are merged with them by two pointers, where the pointer of the
+ * peaks jumps to each window by binary search. The targets which cannot be hit
+ * are excluded with the header values of the scan before decoding the peaks,
+ * see {@link #getCandidates(float, float, float)}.
+ */
+public class PeakTargetMatcher {
+
+	/** Relative margin of the header values against rounding errors */
+	private static final double HEADER_MARGIN = 1.0E-6D;
+
+	private int m_nTargets;
+	/** Indexes of the targets in order of the windows */
+	private int[] m_aTargetIndexes;
+	/** Positions of the targets in order of the windows */
+	private int[] m_aTargetPositions;
+	private double[] m_aMinMzs;
+	private double[] m_aMaxMzs;
+	private double[] m_aCutOffs;
+	private boolean[] m_aIsPercentage;
+
+	/**
+	 * Constructor.
+	 * @param a_lTargets List of the targets, whose values must be all set
+	 */
+	public PeakTargetMatcher(List<PickerTarget> a_lTargets) {
+		this.m_nTargets = a_lTargets.size();
+		double[] aMinMzs = new double[this.m_nTargets];
+		double[] aMaxMzs = new double[this.m_nTargets];
+		for ( int i = 0; i < this.m_nTargets; i++ ) {
+			PickerTarget target = a_lTargets.get(i);
+			double dAccuracy = target.getAccuracy();
+			if ( target.getPPM() )
+				dAccuracy = (target.getMzValue() / 1000000) * dAccuracy;
+			aMinMzs[i] = target.getMzValue() - dAccuracy;
+			aMaxMzs[i] = target.getMzValue() + dAccuracy;
+		}
+
+		Integer[] aOrder = new Integer[this.m_nTargets];
+		for ( int i = 0; i < this.m_nTargets; i++ )
+			aOrder[i] = i;
+		Arrays.sort(aOrder, Comparator.comparingDouble(i -> aMinMzs[i]));
+
+		this.m_aTargetIndexes = new int[this.m_nTargets];
+		this.m_aTargetPositions = new int[this.m_nTargets];
+		this.m_aMinMzs = new double[this.m_nTargets];
+		this.m_aMaxMzs = new double[this.m_nTargets];
+		this.m_aCutOffs = new double[this.m_nTargets];
+		this.m_aIsPercentage = new boolean[this.m_nTargets];
+		for ( int k = 0; k < this.m_nTargets; k++ ) {
+			int i = aOrder[k];
+			PickerTarget target = a_lTargets.get(i);
+			this.m_aTargetIndexes[k] = i;
+			this.m_aTargetPositions[i] = k;
+			this.m_aMinMzs[k] = aMinMzs[i];
+			this.m_aMaxMzs[k] = aMaxMzs[i];
+			this.m_aCutOffs[k] = target.getCutOffValue();
+			this.m_aIsPercentage[k] = target.getPercentage();
+		}
+	}
+
+	/**
+	 * Returns the number of the targets.
+	 * @return the number of the targets
+	 */
+	public int getTargetCount() {
+		return this.m_nTargets;
+	}
+
+	/**
+	 * Returns the targets which can be hit by a scan with the given header
+	 * values, without decoding the peaks. A target cannot be hit if its window is
+	 * out of the m/z range of the peaks, or if its cutoff is absolute and higher
+	 * than the base peak.
+	 * @param a_fLowMz the lowest m/z value of the peaks, or -1 if not available
+	 * @param a_fHighMz the highest m/z value of the peaks, or -1 if not available
+	 * @param a_fBasePeakIntensity intensity of the base peak, or -1 if not available
+	 * @return BitSet of the indexes of the targets which can be hit
+	 */
+	public BitSet getCandidates(float a_fLowMz, float a_fHighMz, float a_fBasePeakIntensity) {
+		double dLowMz = ( a_fLowMz == -1f )? Double.NEGATIVE_INFINITY : a_fLowMz * (1 - HEADER_MARGIN);
+		double dHighMz = ( a_fHighMz == -1f )? Double.POSITIVE_INFINITY : a_fHighMz * (1 + HEADER_MARGIN);
+		double dBasePeakIntensity = ( a_fBasePeakIntensity == -1f )?
+				Double.POSITIVE_INFINITY : a_fBasePeakIntensity * (1 + HEADER_MARGIN);
+		BitSet candidates = new BitSet(this.m_nTargets);
+		for ( int k = 0; k < this.m_nTargets && this.m_aMinMzs[k] <= dHighMz; k++ ) {
+			if ( this.m_aMaxMzs[k] < dLowMz )
+				continue;
+			if ( !this.m_aIsPercentage[k] && this.m_aCutOffs[k] > dBasePeakIntensity )
+				continue;
+			candidates.set(this.m_aTargetIndexes[k]);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Matches the peaks against all targets.
+	 * @see #match(double[][], BitSet)
+	 */
+	public BitSet match(double[][] a_peaks) {
+		BitSet candidates = new BitSet(this.m_nTargets);
+		candidates.set(0, this.m_nTargets);
+		return this.match(a_peaks, candidates);
+	}
+
+	/**
+	 * Matches the peaks against the given targets.
+	 * @param a_peaks double matrix of the peaks sorted with m/z values, the first
+	 *        row (double[0]) are the m/z values and the second row (double[1])
+	 *        are the intensity values
+	 * @param a_candidates BitSet of the indexes of the targets to match
+	 * @return BitSet of the indexes of the hit targets in the given list
+	 */
+	public BitSet match(double[][] a_peaks, BitSet a_candidates) {
+		BitSet hits = new BitSet(this.m_nTargets);
+		double[] aMzs = a_peaks[0];
+		double[] aIntensities = a_peaks[1];
+		int nPeaks = aMzs.length;
+		if ( nPeaks == 0 )
+			return hits;
+
+		// Highest peak is found only when a cutoff in percentage is needed
+		double dHighestIntensity = Double.NaN;
+		int iPeak = 0;
+		for ( int k = 0; k < this.m_nTargets; k++ ) {
+			if ( !a_candidates.get(this.m_aTargetIndexes[k]) )
+				continue;
+			// First peak in the window, which never goes back since the windows are sorted
+			iPeak = lowerBound(aMzs, iPeak, nPeaks, this.m_aMinMzs[k]);
+			if ( iPeak == nPeaks )
+				break;
+			if ( aMzs[iPeak] > this.m_aMaxMzs[k] )
+				continue;
+
+			double dCutOff = this.m_aCutOffs[k];
+			if ( this.m_aIsPercentage[k] ) {
+				if ( Double.isNaN(dHighestIntensity) )
+					dHighestIntensity = getHighestIntensity(aIntensities);
+				dCutOff = dHighestIntensity * dCutOff / 100;
+			}
+			for ( int i = iPeak; i < nPeaks && aMzs[i] <= this.m_aMaxMzs[k]; i++ ) {
+				if ( aIntensities[i] < dCutOff )
+					continue;
+				hits.set(this.m_aTargetIndexes[k]);
+				break;
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Returns the most intense peak in the window of a target.
+	 * @param a_peaks double matrix of the peaks sorted with m/z values
+	 * @param a_iTarget index of the target in the given list
+	 * @return index of the peak, or -1 if no peak is in the window
+	 */
+	public int getMostIntensePeak(double[][] a_peaks, int a_iTarget) {
+		int k = this.m_aTargetPositions[a_iTarget];
+		double[] aMzs = a_peaks[0];
+		double[] aIntensities = a_peaks[1];
+		int iBest = -1;
+		for ( int i = lowerBound(aMzs, 0, aMzs.length, this.m_aMinMzs[k]);
+				i < aMzs.length && aMzs[i] <= this.m_aMaxMzs[k]; i++ ) {
+			if ( iBest < 0 || aIntensities[i] > aIntensities[iBest] )
+				iBest = i;
+		}
+		return iBest;
+	}
+
+	/**
+	 * Returns the index of the first value not less than the key in the range.
+	 */
+	private static int lowerBound(double[] a_aValues, int a_iFrom, int a_iTo, double a_dKey) {
+		int iLow = a_iFrom;
+		int iHigh = a_iTo;
+		while ( iLow < iHigh ) {
+			int iMid = (iLow + iHigh) >>> 1;
+			if ( a_aValues[iMid] < a_dKey )
+				iLow = iMid + 1;
+			else
+				iHigh = iMid;
+		}
+		return iLow;
+	}
+
+	/**
+	 * Returns the highest intensity of the peaks.
+	 * @param a_aIntensities the intensity values, not empty
+	 * @return the highest intensity
+	 */
+	public static double getHighestIntensity(double[] a_aIntensities) {
+		double dHighestIntensity = a_aIntensities[0];
+		for ( int i = 1; i < a_aIntensities.length; i++ )
+			dHighestIntensity = Math.max(dHighestIntensity, a_aIntensities[i]);
+		return dHighestIntensity;
+	}
+}
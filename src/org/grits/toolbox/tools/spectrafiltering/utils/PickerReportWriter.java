@@ -0,0 +1,164 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.grits.toolbox.tools.spectrafiltering.om.PickerTarget;
+
+/**
+ * Writes the hits of the picked scans into a CSV file instead of an mzXML file.
+ * Each line is a hit of a target with the most intense peak in its window, and
+ * the hits are written as soon as the scans are filtered. The numbers of the
+ * filtered and the hit scans are counted for the statistics. The hits of the
+ * scans filtered in parallel are written into buffers and appended in order.
+ */
+public class PickerReportWriter {
+
+	public static final String HEADER =
+			"scan,retentionTime,precursorMz,precursorCharge,target,mz,intensity,relativeIntensity";
+
+	private Writer m_writer;
+	/** Buffer of the lines, or null if the lines are written into the file */
+	private StringWriter m_buffer = null;
+	private List<PickerTarget> m_lTargets;
+	private StringBuilder m_line = new StringBuilder();
+
+	private int m_nFilteredScans = 0;
+	private int m_nHitScans = 0;
+	private int[] m_aTargetHits;
+
+	/**
+	 * Creates the CSV file and writes the header line.
+	 * @param a_strFile path of the CSV file
+	 * @param a_lTargets List of the targets in order of the indexes of the hits
+	 * @throws IOException
+	 */
+	public PickerReportWriter(String a_strFile, List<PickerTarget> a_lTargets) throws IOException {
+		this.m_writer = Files.newBufferedWriter(Paths.get(a_strFile), StandardCharsets.UTF_8);
+		this.m_lTargets = a_lTargets;
+		this.m_aTargetHits = new int[a_lTargets.size()];
+		this.m_writer.write(HEADER);
+		this.m_writer.write(System.lineSeparator());
+	}
+
+	/**
+	 * Creates the buffer of the lines to append to another report later.
+	 * @param a_lTargets List of the targets in order of the indexes of the hits
+	 * @see #append(PickerReportWriter)
+	 */
+	public PickerReportWriter(List<PickerTarget> a_lTargets) {
+		this.m_buffer = new StringWriter();
+		this.m_writer = this.m_buffer;
+		this.m_lTargets = a_lTargets;
+		this.m_aTargetHits = new int[a_lTargets.size()];
+	}
+
+	/**
+	 * Appends the lines and the counters of the buffer.
+	 * @param a_buffer PickerReportWriter created as a buffer with the same targets
+	 * @throws IOException
+	 */
+	public void append(PickerReportWriter a_buffer) throws IOException {
+		this.m_writer.append(a_buffer.m_buffer.getBuffer());
+		this.m_nFilteredScans += a_buffer.m_nFilteredScans;
+		this.m_nHitScans += a_buffer.m_nHitScans;
+		for ( int i = 0; i < this.m_aTargetHits.length; i++ )
+			this.m_aTargetHits[i] += a_buffer.m_aTargetHits[i];
+	}
+
+	/**
+	 * Counts a scan whose peaks are matched against the targets.
+	 */
+	public void countFilteredScan() {
+		this.m_nFilteredScans++;
+	}
+
+	/**
+	 * Writes the hit of a target.
+	 * @param a_iScanNum the scan number
+	 * @param a_dRetentionTime the retention time in seconds, or NaN if not available
+	 * @param a_dPrecursorMz m/z value of the precursor ion
+	 * @param a_iPrecursorCharge charge state of the precursor ion
+	 * @param a_iTarget index of the hit target
+	 * @param a_dMz m/z value of the most intense peak of the target
+	 * @param a_dIntensity intensity of the peak
+	 * @param a_dRelativeIntensity intensity of the peak relative to the highest peak in percentage
+	 * @throws IOException
+	 */
+	public void writeHit(int a_iScanNum, double a_dRetentionTime, double a_dPrecursorMz,
+			int a_iPrecursorCharge, int a_iTarget, double a_dMz, double a_dIntensity,
+			double a_dRelativeIntensity) throws IOException {
+		this.m_aTargetHits[a_iTarget]++;
+		StringBuilder line = this.m_line;
+		line.setLength(0);
+		line.append(a_iScanNum).append(',');
+		if ( !Double.isNaN(a_dRetentionTime) )
+			line.append(a_dRetentionTime);
+		line.append(',').append(a_dPrecursorMz);
+		line.append(',').append(a_iPrecursorCharge);
+		line.append(',').append(getTargetName(this.m_lTargets.get(a_iTarget)));
+		line.append(',').append(a_dMz);
+		line.append(',').append(a_dIntensity);
+		line.append(',').append(a_dRelativeIntensity);
+		line.append(System.lineSeparator());
+		this.m_writer.append(line);
+	}
+
+	/**
+	 * Counts a scan which hits any target.
+	 */
+	public void countHitScan() {
+		this.m_nHitScans++;
+	}
+
+	private static String getTargetName(PickerTarget a_target) {
+		String strName = a_target.getName();
+		if ( strName == null || strName.isEmpty() )
+			return String.valueOf(a_target.getMzValue());
+		// Quotes the name for CSV
+		if ( strName.indexOf(',') >= 0 || strName.indexOf('"') >= 0 )
+			return "\"" + strName.replace("\"", "\"\"") + "\"";
+		return strName;
+	}
+
+	public int getFilteredScans() {
+		return this.m_nFilteredScans;
+	}
+
+	public int getHitScans() {
+		return this.m_nHitScans;
+	}
+
+	/**
+	 * Returns the number of the scans hit by a target.
+	 * @param a_iTarget index of the target
+	 * @return the number of the hit scans
+	 */
+	public int getTargetHits(int a_iTarget) {
+		return this.m_aTargetHits[a_iTarget];
+	}
+
+	/**
+	 * Returns the statistics of the hits.
+	 * @return String of the numbers of the filtered and the hit scans, and the
+	 *         hit scans of each target
+	 */
+	public String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.m_nHitScans).append(" of ").append(this.m_nFilteredScans).append(" scans hit");
+		for ( int i = 0; i < this.m_aTargetHits.length; i++ ) {
+			sb.append('\n').append(getTargetName(this.m_lTargets.get(i)))
+					.append(": ").append(this.m_aTargetHits[i]).append(" scans");
+		}
+		return sb.toString();
+	}
+
+	public void close() throws IOException {
+		this.m_writer.close();
+	}
+}
@@ -0,0 +1,228 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Groups MS2 scans having the same precursor, i.e. the same activation method,
+ * the same precursor charge and the same precursor m/z value within the given
+ * accuracy (see {@link MassIntensityListUtils#isSamePeaks(double, double, double, boolean)}).
+ * <p>
+ * The scans are partitioned with the activation method and the charge, and are
+ * sorted with the precursor m/z values in each partition. The candidates of the
+ * same scans are searched only in the tolerance window of the precursor m/z
+ * value, so that the grouping costs O(N log N) instead of comparing all pairs of
+ * the scans. The result is the same as the greedy comparison in order of the
+ * scans, that is, each group takes at most one scan from each of the following
+ * MS1 scans, which is the first unchecked scan in the MS1 scan.
+ * <p>
+ * Scans must be added in order of their parent MS1 scans, and in order of the
+ * scans in each MS1 scan.
+ */
+public class PrecursorGroupingEngine {
+
+	/** Relative margin to widen the tolerance window against rounding errors */
+	private static final double WINDOW_MARGIN = 1.0E-9D;
+
+	private double m_dAccuracy;
+	private boolean m_bIsPPM;
+
+	private int m_nScans = 0;
+	private int[] m_aScanNums = new int[16];
+	private int[] m_aBlocks = new int[16];
+	private int[] m_aPartitions = new int[16];
+	private double[] m_aPrecursorMzs = new double[16];
+
+	private int m_iLastPrecursorScanNum = -1;
+	private int m_nBlocks = 0;
+	private Map<Long, Integer> m_mapKeyToPartition = new HashMap<>();
+
+	public PrecursorGroupingEngine(double a_dAccuracy, boolean a_bIsPPM) {
+		this.m_dAccuracy = a_dAccuracy;
+		this.m_bIsPPM = a_bIsPPM;
+	}
+
+	/**
+	 * Adds a MS2 scan to be grouped.
+	 * @param a_iScanNum scan number of the MS2 scan
+	 * @param a_iPrecursorScanNum scan number of the parent MS1 scan
+	 * @param a_iActivationCode code of the activation method of the MS2 scan, see
+	 *        {@link org.grits.toolbox.tools.spectrafiltering.om.ScanHeaderTable#getActivationCode(int)}
+	 * @param a_iCharge charge of the precursor
+	 * @param a_dPrecursorMz m/z value of the precursor
+	 */
+	public void addScan(int a_iScanNum, int a_iPrecursorScanNum, int a_iActivationCode, int a_iCharge,
+			double a_dPrecursorMz) {
+		if ( this.m_nScans == this.m_aScanNums.length ) {
+			int nNew = this.m_nScans * 2;
+			this.m_aScanNums = Arrays.copyOf(this.m_aScanNums, nNew);
+			this.m_aBlocks = Arrays.copyOf(this.m_aBlocks, nNew);
+			this.m_aPartitions = Arrays.copyOf(this.m_aPartitions, nNew);
+			this.m_aPrecursorMzs = Arrays.copyOf(this.m_aPrecursorMzs, nNew);
+		}
+		if ( this.m_nScans == 0 || a_iPrecursorScanNum != this.m_iLastPrecursorScanNum )
+			this.m_nBlocks++;
+		this.m_iLastPrecursorScanNum = a_iPrecursorScanNum;
+
+		long lKey = ((long) a_iActivationCode << 32) | (a_iCharge & 0xFFFFFFFFL);
+		Integer iPartition = this.m_mapKeyToPartition.get(lKey);
+		if ( iPartition == null ) {
+			iPartition = this.m_mapKeyToPartition.size();
+			this.m_mapKeyToPartition.put(lKey, iPartition);
+		}
+
+		this.m_aScanNums[this.m_nScans] = a_iScanNum;
+		this.m_aBlocks[this.m_nScans] = this.m_nBlocks;
+		this.m_aPartitions[this.m_nScans] = iPartition;
+		this.m_aPrecursorMzs[this.m_nScans] = a_dPrecursorMz;
+		this.m_nScans++;
+	}
+
+	/**
+	 * Returns the number of the added scans.
+	 * @return the number of the added scans
+	 */
+	public int getScanCount() {
+		return this.m_nScans;
+	}
+
+	/**
+	 * Groups the added scans.
+	 * @return Map of the first scan number of each group to the list of the
+	 *         other scan numbers in the group
+	 */
+	public Map<Integer, List<Integer>> groupScans() {
+		int n = this.m_nScans;
+
+		// Sort the scans with partition, precursor m/z value and the order
+		Integer[] aSorted = new Integer[n];
+		for ( int i = 0; i < n; i++ )
+			aSorted[i] = i;
+		Arrays.sort(aSorted, (i1, i2) -> {
+			if ( this.m_aPartitions[i1] != this.m_aPartitions[i2] )
+				return Integer.compare(this.m_aPartitions[i1], this.m_aPartitions[i2]);
+			int iComp = Double.compare(this.m_aPrecursorMzs[i1], this.m_aPrecursorMzs[i2]);
+			if ( iComp != 0 )
+				return iComp;
+			return Integer.compare(i1, i2);
+		});
+		int[] aSortedIds = new int[n];
+		double[] aSortedMzs = new double[n];
+		int[] aPositions = new int[n];
+		int[] aPartitionEnds = new int[this.m_mapKeyToPartition.size()];
+		for ( int p = 0; p < n; p++ ) {
+			int i = aSorted[p];
+			aSortedIds[p] = i;
+			aSortedMzs[p] = this.m_aPrecursorMzs[i];
+			aPositions[i] = p;
+			aPartitionEnds[this.m_aPartitions[i]] = p + 1;
+		}
+		aSorted = null;
+		int[] aPartitionStarts = new int[aPartitionEnds.length];
+		for ( int p = n - 1; p >= 0; p-- )
+			aPartitionStarts[this.m_aPartitions[aSortedIds[p]]] = p;
+
+		// Pointers to the next unchecked position, n is used as the sentinel
+		int[] aNextAlive = new int[n + 1];
+		for ( int p = 0; p <= n; p++ )
+			aNextAlive[p] = p;
+
+		Map<Integer, List<Integer>> mapFirstScanToSameScans = new TreeMap<>();
+		BitSet bsChecked = new BitSet(n);
+		int[] aCandidates = new int[16];
+		for ( int i = 0; i < n; i++ ) {
+			if ( bsChecked.get(i) )
+				continue;
+			// The first scan is never compared with the following scans
+			aNextAlive[aPositions[i]] = aPositions[i] + 1;
+
+			int iPartition = this.m_aPartitions[i];
+			int iEnd = aPartitionEnds[iPartition];
+			double dMz = this.m_aPrecursorMzs[i];
+			double[] dWindow = this.getWindow(dMz);
+
+			// Collect candidates in the tolerance window
+			int nCandidates = 0;
+			int p = findAlive(aNextAlive,
+					lowerBound(aSortedMzs, aPartitionStarts[iPartition], iEnd, dWindow[0]));
+			while ( p < iEnd && aSortedMzs[p] <= dWindow[1] ) {
+				int j = aSortedIds[p];
+				if ( this.m_aBlocks[j] > this.m_aBlocks[i]
+						&& MassIntensityListUtils.isSamePeaks(dMz, aSortedMzs[p], this.m_dAccuracy, this.m_bIsPPM) ) {
+					if ( nCandidates == aCandidates.length )
+						aCandidates = Arrays.copyOf(aCandidates, nCandidates * 2);
+					aCandidates[nCandidates++] = j;
+				}
+				p = findAlive(aNextAlive, p + 1);
+			}
+
+			// Take the first candidate in each MS1 scan
+			Arrays.sort(aCandidates, 0, nCandidates);
+			List<Integer> lSameScans = new ArrayList<>();
+			int iLastBlock = -1;
+			for ( int k = 0; k < nCandidates; k++ ) {
+				int j = aCandidates[k];
+				if ( this.m_aBlocks[j] == iLastBlock )
+					continue;
+				iLastBlock = this.m_aBlocks[j];
+				bsChecked.set(j);
+				aNextAlive[aPositions[j]] = aPositions[j] + 1;
+				lSameScans.add(this.m_aScanNums[j]);
+			}
+			mapFirstScanToSameScans.put(this.m_aScanNums[i], lSameScans);
+		}
+		return mapFirstScanToSameScans;
+	}
+
+	/**
+	 * Returns the window of m/z values which can be the same as the given m/z value.
+	 * The window is slightly wider than the accuracy, and the m/z values in the
+	 * window must be checked with {@link MassIntensityListUtils#isSamePeaks(double, double, double, boolean)}.
+	 * @param a_dMz m/z value
+	 * @return double[] of the lower and upper limits of the window
+	 */
+	private double[] getWindow(double a_dMz) {
+		if ( !this.m_bIsPPM ) {
+			double dMargin = (Math.abs(a_dMz) + this.m_dAccuracy) * WINDOW_MARGIN;
+			return new double[] { a_dMz - this.m_dAccuracy - dMargin, a_dMz + this.m_dAccuracy + dMargin };
+		}
+		// |mz1 - mz2| <= (mz1 + mz2) / 2 * acc / 10^6
+		double a = this.m_dAccuracy / 2000000;
+		if ( a >= 1.0D )
+			return new double[] { Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double dLow = a_dMz * (1 - a) / (1 + a);
+		double dHigh = a_dMz * (1 + a) / (1 - a);
+		double dMargin = Math.abs(a_dMz) * WINDOW_MARGIN;
+		return new double[] { dLow - dMargin, dHigh + dMargin };
+	}
+
+	private static int lowerBound(double[] a_aValues, int a_iFrom, int a_iTo, double a_dKey) {
+		int iLow = a_iFrom, iHigh = a_iTo;
+		while ( iLow < iHigh ) {
+			int iMid = (iLow + iHigh) >>> 1;
+			if ( a_aValues[iMid] < a_dKey )
+				iLow = iMid + 1;
+			else
+				iHigh = iMid;
+		}
+		return iLow;
+	}
+
+	private static int findAlive(int[] a_aNextAlive, int p) {
+		int iRoot = p;
+		while ( a_aNextAlive[iRoot] != iRoot )
+			iRoot = a_aNextAlive[iRoot];
+		// Compress the path
+		while ( a_aNextAlive[p] != iRoot ) {
+			int iNext = a_aNextAlive[p];
+			a_aNextAlive[p] = iRoot;
+			p = iNext;
+		}
+		return iRoot;
+	}
+}
@@ -0,0 +1,236 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates m/z - intensity lists of profile mode on a fixed grid of m/z
+ * values. Each added list is resampled onto the grid with linear interpolation
+ * between its neighboring points, and the intensities are summed up in
+ * primitive arrays. So the cost of adding a list is proportional to the number
+ * of its points and the grid points covered by it, and the memory is constant
+ * for the grid regardless of the number of the added lists.
+ * <p>
+ * The grid is stored in chunks of a fixed number of points, which are allocated
+ * when they are touched. So the grid is extended without copying the summed
+ * intensities when a list is out of the current range. A list which makes the
+ * grid wider than {@link #MAX_GRID_SIZE} is not added, so that the caller can
+ * add the rest of the lists in another way.
+ */
+public class ProfileGridAccumulator {
+
+	/** Maximum number of grid points to prevent too fine grid, about 32 MB of intensities */
+	public static final int MAX_GRID_SIZE = 1 << 22;
+
+	/** Number of grid points in a chunk is 2^CHUNK_BITS */
+	private static final int CHUNK_BITS = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final double m_dInterval;
+	/** m/z value of the grid point 0, the points can have negative indexes */
+	private final double m_dOrigin;
+	/** Chunks of the summed intensities from the first chunk, or null if not touched */
+	private double[][] m_aChunks = new double[0][];
+	private int m_iFirstChunk = 0;
+	/** Range of the grid points including the added lists */
+	private int m_iLowest;
+	private int m_iHighest;
+	private int m_iFirstUsed = Integer.MAX_VALUE;
+	private int m_iLastUsed = Integer.MIN_VALUE;
+	/** Range of the m/z values of the added lists */
+	private double m_dLowMz = Double.POSITIVE_INFINITY;
+	private double m_dHighMz = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Constructor.
+	 * @param a_dStartMz the lowest m/z value of the grid
+	 * @param a_dEndMz the highest m/z value of the grid
+	 * @param a_dInterval the interval of the grid points
+	 * @throws IllegalArgumentException if the interval is not positive or the grid is too large
+	 */
+	public ProfileGridAccumulator(double a_dStartMz, double a_dEndMz, double a_dInterval)
+			throws IllegalArgumentException {
+		if ( !(a_dInterval > 0.0D) )
+			throw new IllegalArgumentException("Interval of the grid must be positive, but is " + a_dInterval);
+		this.m_dInterval = a_dInterval;
+		this.m_dOrigin = Math.floor(a_dStartMz / a_dInterval) * a_dInterval;
+		double dSize = Math.ceil((a_dEndMz - this.m_dOrigin) / a_dInterval) + 1;
+		if ( dSize > MAX_GRID_SIZE )
+			throw new IllegalArgumentException("Too many grid points: " + (long) dSize);
+		this.m_iLowest = 0;
+		this.m_iHighest = (int) Math.max(0, dSize - 1);
+	}
+
+	/**
+	 * Creates an accumulator whose grid interval is the sampling interval of the
+	 * given m/z - intensity list, which is taken by
+	 * {@link MassIntensityListUtils#getMinimumInterval(double[])}.
+	 * @param a_dMassIntenList m/z - intensity list sorted with m/z values
+	 * @param a_dStartMz the lowest m/z value of the grid
+	 * @param a_dEndMz the highest m/z value of the grid
+	 * @return ProfileGridAccumulator or {@code null} if the sampling interval cannot be determined
+	 *         or the grid is too large
+	 */
+	public static ProfileGridAccumulator create(double[][] a_dMassIntenList, double a_dStartMz, double a_dEndMz) {
+		if ( a_dMassIntenList[0].length < 2 )
+			return null;
+		double dInterval = MassIntensityListUtils.getMinimumInterval(a_dMassIntenList[0]);
+		if ( !(dInterval > 0.0D) )
+			return null;
+		int nLast = a_dMassIntenList[0].length - 1;
+		double dStartMz = Math.min(a_dStartMz, a_dMassIntenList[0][0]);
+		double dEndMz = Math.max(a_dEndMz, a_dMassIntenList[0][nLast]);
+		if ( (dEndMz - dStartMz) / dInterval + 2 > MAX_GRID_SIZE )
+			return null;
+		return new ProfileGridAccumulator(dStartMz, dEndMz, dInterval);
+	}
+
+	/**
+	 * Resamples the given m/z - intensity list onto the grid and adds the
+	 * intensities. Grid points between two points with zero intensity are not
+	 * touched.
+	 * @param a_dMassIntenList m/z - intensity list sorted with m/z values
+	 * @return {@code false} if the list is not added since the grid would be
+	 *         wider than {@link #MAX_GRID_SIZE}
+	 */
+	public boolean addMassIntensityList(double[][] a_dMassIntenList) {
+		double[] dMasses = a_dMassIntenList[0];
+		double[] dIntens = a_dMassIntenList[1];
+		int nMass = dMasses.length;
+		if ( nMass == 0 )
+			return true;
+		if ( !this.ensureRange(dMasses[0], dMasses[nMass - 1]) )
+			return false;
+		this.m_dLowMz = Math.min(this.m_dLowMz, dMasses[0]);
+		this.m_dHighMz = Math.max(this.m_dHighMz, dMasses[nMass - 1]);
+
+		double dInterval = this.m_dInterval;
+		double dOrigin = this.m_dOrigin;
+		for ( int i = 1; i < nMass; i++ ) {
+			double dMass0 = dMasses[i - 1];
+			double dMass1 = dMasses[i];
+			double dInten0 = dIntens[i - 1];
+			double dInten1 = dIntens[i];
+			if ( (dInten0 == 0.0D && dInten1 == 0.0D) || !(dMass1 > dMass0) )
+				continue;
+			// Grid points in [dMass0, dMass1)
+			int k = (int) Math.ceil((dMass0 - dOrigin) / dInterval);
+			double dSlope = (dInten1 - dInten0) / (dMass1 - dMass0);
+			double dGrid = dOrigin + k * dInterval;
+			if ( dGrid >= dMass1 )
+				continue;
+			this.m_iFirstUsed = Math.min(this.m_iFirstUsed, k);
+			double[] aChunk = this.getChunk(k >> CHUNK_BITS);
+			for ( ; dGrid < dMass1; dGrid = dOrigin + (++k) * dInterval ) {
+				if ( (k & CHUNK_MASK) == 0 )
+					aChunk = this.getChunk(k >> CHUNK_BITS);
+				aChunk[k & CHUNK_MASK] += dInten0 + dSlope * (dGrid - dMass0);
+			}
+			this.m_iLastUsed = Math.max(this.m_iLastUsed, k - 1);
+		}
+		// The last point on a grid point
+		double dLast = (dMasses[nMass - 1] - dOrigin) / dInterval;
+		int kLast = (int) Math.round(dLast);
+		if ( dLast == kLast && dIntens[nMass - 1] != 0.0D ) {
+			this.getChunk(kLast >> CHUNK_BITS)[kLast & CHUNK_MASK] += dIntens[nMass - 1];
+			this.m_iFirstUsed = Math.min(this.m_iFirstUsed, kLast);
+			this.m_iLastUsed = Math.max(this.m_iLastUsed, kLast);
+		}
+		return true;
+	}
+
+	/**
+	 * Extends the range of the grid to cover the m/z values.
+	 * @return {@code false} if the grid would be too large
+	 */
+	private boolean ensureRange(double a_dLowMz, double a_dHighMz) {
+		double dLowest = Math.min(this.m_iLowest, Math.floor((a_dLowMz - this.m_dOrigin) / this.m_dInterval));
+		double dHighest = Math.max(this.m_iHighest, Math.ceil((a_dHighMz - this.m_dOrigin) / this.m_dInterval));
+		if ( dHighest - dLowest + 1 > MAX_GRID_SIZE )
+			return false;
+		this.m_iLowest = (int) dLowest;
+		this.m_iHighest = (int) dHighest;
+		return true;
+	}
+
+	/**
+	 * Returns the chunk of the intensities, which is allocated if not touched yet.
+	 * Only the references to the chunks are copied to extend the grid.
+	 */
+	private double[] getChunk(int a_iChunk) {
+		int nChunks = this.m_aChunks.length;
+		if ( a_iChunk < this.m_iFirstChunk || a_iChunk >= this.m_iFirstChunk + nChunks ) {
+			int iFirst = ( nChunks == 0 ) ? a_iChunk : Math.min(this.m_iFirstChunk, a_iChunk);
+			int iEnd = ( nChunks == 0 ) ? a_iChunk + 1 : Math.max(this.m_iFirstChunk + nChunks, a_iChunk + 1);
+			double[][] aChunks = new double[iEnd - iFirst][];
+			if ( nChunks > 0 )
+				System.arraycopy(this.m_aChunks, 0, aChunks, this.m_iFirstChunk - iFirst, nChunks);
+			this.m_aChunks = aChunks;
+			this.m_iFirstChunk = iFirst;
+		}
+		double[] aChunk = this.m_aChunks[a_iChunk - this.m_iFirstChunk];
+		if ( aChunk == null ) {
+			aChunk = new double[CHUNK_SIZE];
+			this.m_aChunks[a_iChunk - this.m_iFirstChunk] = aChunk;
+		}
+		return aChunk;
+	}
+
+	private double getIntensity(int k) {
+		int iChunk = (k >> CHUNK_BITS) - this.m_iFirstChunk;
+		if ( iChunk < 0 || iChunk >= this.m_aChunks.length || this.m_aChunks[iChunk] == null )
+			return 0.0D;
+		return this.m_aChunks[iChunk][k & CHUNK_MASK];
+	}
+
+	/**
+	 * Returns the interval of the grid points.
+	 * @return the interval of the grid
+	 */
+	public double getInterval() {
+		return this.m_dInterval;
+	}
+
+	/**
+	 * Returns the accumulated m/z - intensity list on the grid. Sequential zero
+	 * intensities are eliminated as
+	 * {@link MassIntensityListUtils#eliminateSequentialZeroIntensities(double[][])}.
+	 * If no grid point is touched, e.g. all the added lists have only zero
+	 * intensities, the lowest and the highest m/z values of the added lists are
+	 * returned with zero intensity as the sequential merge keeps them.
+	 * @return m/z - intensity list of the summed intensities, which is empty only
+	 *         if no point is added
+	 */
+	public double[][] getMassIntensityList() {
+		if ( this.m_iLastUsed < this.m_iFirstUsed ) {
+			if ( this.m_dHighMz < this.m_dLowMz )
+				return new double[2][0];
+			if ( this.m_dHighMz == this.m_dLowMz )
+				return new double[][] { { this.m_dLowMz }, { 0.0D } };
+			return new double[][] { { this.m_dLowMz, this.m_dHighMz }, { 0.0D, 0.0D } };
+		}
+		int nUsed = this.m_iLastUsed - this.m_iFirstUsed + 1;
+		double[][] dMassIntenList = new double[2][nUsed];
+		int n = 0;
+		double dPrev = 0.0D;
+		double dInten = this.getIntensity(this.m_iFirstUsed);
+		for ( int k = this.m_iFirstUsed; k <= this.m_iLastUsed; k++ ) {
+			double dNext = ( k < this.m_iLastUsed ) ? this.getIntensity(k + 1) : 0.0D;
+			// Ignore zero intensity between two zero intensities
+			if ( dInten == 0.0D && k > this.m_iFirstUsed && dPrev == 0.0D
+					&& k < this.m_iLastUsed && dNext == 0.0D ) {
+				dPrev = dInten;
+				dInten = dNext;
+				continue;
+			}
+			dMassIntenList[0][n] = this.m_dOrigin + k * this.m_dInterval;
+			dMassIntenList[1][n] = dInten;
+			n++;
+			dPrev = dInten;
+			dInten = dNext;
+		}
+		if ( n == nUsed )
+			return dMassIntenList;
+		return new double[][] { Arrays.copyOf(dMassIntenList[0], n), Arrays.copyOf(dMassIntenList[1], n) };
+	}
+}
@@ -0,0 +1,179 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scan element located in an mzXML file, which is copied without decoding the
+ * peaks. The scan element is split into the head from "&lt;scan" through the
+ * start tag of the peaks and the Base64 payload of the peaks, whose length is
+ * computed from the attributes. Elements after the peaks such as nameValue,
+ * comment and nested scans are not copied.
+ */
+public class RawScanElement {
+
+	/** Limit of the head length to search the start tag of the peaks */
+	private static final int MAX_HEAD_LENGTH = 65536;
+	private static final int READ_SIZE = 4096;
+
+	private static final Pattern NUM = attributePattern("num");
+	private static final Pattern PRECURSOR_SCAN_NUM = attributePattern("precursorScanNum");
+	private static final Pattern PEAKS_COUNT = attributePattern("peaksCount");
+	private static final Pattern COMPRESSION_TYPE = attributePattern("compressionType");
+	private static final Pattern COMPRESSED_LEN = attributePattern("compressedLen");
+	private static final Pattern PRECISION = attributePattern("precision");
+	private static final Pattern CONTENT_TYPE = attributePattern("contentType");
+	private static final Pattern PAIR_ORDER = attributePattern("pairOrder");
+
+	private static final byte[] PEAKS_END_TAG = "</peaks>".getBytes(StandardCharsets.ISO_8859_1);
+
+	private String m_strHead;
+	private int m_iScanNum;
+	private int m_iPrecursorScanNum;
+	private long m_lPayloadOffset;
+	private long m_lPayloadLength;
+
+	private RawScanElement() {
+	}
+
+	private static Pattern attributePattern(String a_strName) {
+		return Pattern.compile("\\s" + a_strName + "\\s*=\\s*\"([^\"]*)\"");
+	}
+
+	/**
+	 * Locates the scan element starting at the given offset.
+	 * @param a_channel FileChannel of the mzXML file
+	 * @param a_lOffset offset of "&lt;scan" in the file
+	 * @return RawScanElement, or {@code null} if the scan element cannot be copied
+	 *         as it is, e.g. the payload length cannot be determined
+	 * @throws IOException if the file cannot be read
+	 */
+	public static RawScanElement read(FileChannel a_channel, long a_lOffset) throws IOException {
+		if ( a_lOffset < 0 )
+			return null;
+
+		// Read the head through the end of the start tag of the peaks
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_HEAD_LENGTH);
+		String strHead = null;
+		int iPeaksStart = -1;
+		int iPeaksEnd = -1;
+		while ( buffer.hasRemaining() ) {
+			int nLimit = Math.min(buffer.capacity(), buffer.position() + READ_SIZE);
+			buffer.limit(nLimit);
+			int nRead = a_channel.read(buffer, a_lOffset + buffer.position());
+			if ( nRead <= 0 )
+				break;
+			strHead = new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+			if ( iPeaksStart < 0 )
+				iPeaksStart = strHead.indexOf("<peaks");
+			if ( iPeaksStart >= 0 )
+				iPeaksEnd = strHead.indexOf('>', iPeaksStart);
+			if ( iPeaksEnd >= 0 )
+				break;
+		}
+		if ( strHead == null || iPeaksEnd < 0 || !strHead.startsWith("<scan") )
+			return null;
+		strHead = strHead.substring(0, iPeaksEnd + 1);
+		String strScanTag = strHead.substring(0, strHead.indexOf('>') + 1);
+		String strPeaksTag = strHead.substring(iPeaksStart);
+
+		RawScanElement scan = new RawScanElement();
+		scan.m_strHead = strHead;
+		try {
+			scan.m_iScanNum = Integer.parseInt(getAttribute(NUM, strScanTag, null));
+			scan.m_iPrecursorScanNum = Integer.parseInt(getAttribute(PRECURSOR_SCAN_NUM, strHead, "-1"));
+			int nPeaks = Integer.parseInt(getAttribute(PEAKS_COUNT, strScanTag, null));
+			int iPrecision = Integer.parseInt(getAttribute(PRECISION, strPeaksTag, "32"));
+			String strContentType = getAttribute(CONTENT_TYPE, strPeaksTag, "m/z-int");
+			String strPairOrder = getAttribute(PAIR_ORDER, strPeaksTag, "m/z-int");
+			if ( !"m/z-int".equals(strContentType) || !"m/z-int".equals(strPairOrder) )
+				return null;
+			if ( iPrecision != 32 && iPrecision != 64 )
+				return null;
+
+			long lBinaryLength = (long) nPeaks * 2 * iPrecision / 8;
+			if ( "zlib".equals(getAttribute(COMPRESSION_TYPE, strPeaksTag, "none")) )
+				lBinaryLength = Long.parseLong(getAttribute(COMPRESSED_LEN, strPeaksTag, null));
+			scan.m_lPayloadOffset = a_lOffset + strHead.length();
+			scan.m_lPayloadLength = (lBinaryLength + 2) / 3 * 4;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		// The payload must be followed by the end tag of the peaks
+		ByteBuffer end = ByteBuffer.allocate(PEAKS_END_TAG.length);
+		long lEndOffset = scan.m_lPayloadOffset + scan.m_lPayloadLength;
+		while ( end.hasRemaining() ) {
+			if ( a_channel.read(end, lEndOffset + end.position()) <= 0 )
+				return null;
+		}
+		for ( int i = 0; i < PEAKS_END_TAG.length; i++ ) {
+			if ( end.get(i) != PEAKS_END_TAG[i] )
+				return null;
+		}
+		return scan;
+	}
+
+	private static String getAttribute(Pattern a_pattern, String a_strTag, String a_strDefault) {
+		Matcher matcher = a_pattern.matcher(a_strTag);
+		if ( !matcher.find() ) {
+			if ( a_strDefault == null )
+				throw new NumberFormatException("Attribute is not found: " + a_pattern.pattern());
+			return a_strDefault;
+		}
+		return matcher.group(1);
+	}
+
+	public int getScanNum() {
+		return this.m_iScanNum;
+	}
+
+	/**
+	 * Returns the scan number of the precursor scan.
+	 * @return the scan number of the precursor scan, or -1 if not given
+	 */
+	public int getPrecursorScanNum() {
+		return this.m_iPrecursorScanNum;
+	}
+
+	public long getPayloadOffset() {
+		return this.m_lPayloadOffset;
+	}
+
+	public long getPayloadLength() {
+		return this.m_lPayloadLength;
+	}
+
+	/**
+	 * Returns the head with the scan numbers rewritten.
+	 * @param a_iScanNum new scan number
+	 * @param a_iPrecursorScanNum new scan number of the precursor scan, or -1 to
+	 *        remove the precursorScanNum attributes
+	 * @return String of the head from "&lt;scan" through the start tag of the peaks
+	 */
+	public String getHead(int a_iScanNum, int a_iPrecursorScanNum) {
+		StringBuilder sb = new StringBuilder(this.m_strHead.length() + 16);
+		Matcher matcher = NUM.matcher(this.m_strHead);
+		matcher.find();
+		sb.append(this.m_strHead, 0, matcher.start(1)).append(a_iScanNum);
+		int iLast = matcher.end(1);
+
+		matcher = PRECURSOR_SCAN_NUM.matcher(this.m_strHead);
+		while ( matcher.find(iLast) ) {
+			if ( a_iPrecursorScanNum == -1 ) {
+				// Do not set if precursor scan is not written
+				sb.append(this.m_strHead, iLast, matcher.start());
+				iLast = matcher.end();
+			} else {
+				sb.append(this.m_strHead, iLast, matcher.start(1)).append(a_iPrecursorScanNum);
+				iLast = matcher.end(1);
+			}
+		}
+		sb.append(this.m_strHead, iLast, this.m_strHead.length());
+		return sb.toString();
+	}
+}
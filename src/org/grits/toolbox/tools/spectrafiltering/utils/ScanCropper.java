@@ -0,0 +1,131 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+import java.util.Arrays;
+
+import org.systemsbiology.jrap.grits.stax.Scan;
+import org.systemsbiology.jrap.grits.stax.ScanHeader;
+
+/**
+ * Crops the peaks of a scan to the windows around the given m/z values, e.g.
+ * a parent MS1 scan to the precursor ions of its picked MS2 scans. The cropped
+ * scan is a new Scan with a copy of the header, so the original scan can be
+ * written into other outputs as it is.
+ */
+public class ScanCropper {
+
+	private double m_dHalfWidth;
+
+	/**
+	 * Constructor.
+	 * @param a_dHalfWidth half width of the windows in m/z
+	 */
+	public ScanCropper(double a_dHalfWidth) {
+		this.m_dHalfWidth = a_dHalfWidth;
+	}
+
+	/**
+	 * Returns a new scan with the peaks in the windows around the m/z values.
+	 * The number of the peaks, the lowest and highest m/z values, the base peak
+	 * and the total ion current are updated with the cropped peaks.
+	 * @param a_scan Scan to crop
+	 * @param a_aCenters m/z values of the centers of the windows
+	 * @return new Scan with the cropped peaks
+	 */
+	public Scan crop(Scan a_scan, double[] a_aCenters) {
+		double[][] peaks = this.crop(a_scan.getMassIntensityList(), a_aCenters);
+		int nPeaks = peaks[0].length;
+
+		ScanHeader header = copyHeader(a_scan.getHeader());
+		header.setPeaksCount(nPeaks);
+		float fBasePeakMz = -1f;
+		float fBasePeakIntensity = -1f;
+		double dTotIonCurrent = 0;
+		for ( int i = 0; i < nPeaks; i++ ) {
+			dTotIonCurrent += peaks[1][i];
+			if ( peaks[1][i] > fBasePeakIntensity ) {
+				fBasePeakMz = (float) peaks[0][i];
+				fBasePeakIntensity = (float) peaks[1][i];
+			}
+		}
+		header.setLowMz( ( nPeaks == 0 )? -1f : (float) peaks[0][0] );
+		header.setHighMz( ( nPeaks == 0 )? -1f : (float) peaks[0][nPeaks - 1] );
+		header.setBasePeakMz(fBasePeakMz);
+		header.setBasePeakIntensity(fBasePeakIntensity);
+		header.setTotIonCurrent((float) dTotIonCurrent);
+
+		Scan scan = new Scan();
+		scan.setHeader(header);
+		scan.setMassIntensityList(peaks);
+		return scan;
+	}
+
+	/**
+	 * Returns the peaks in the windows around the m/z values.
+	 * @param a_peaks double matrix of the peaks sorted with m/z values
+	 * @param a_aCenters m/z values of the centers of the windows, in any order
+	 * @return double matrix of the peaks in the windows
+	 */
+	public double[][] crop(double[][] a_peaks, double[] a_aCenters) {
+		double[] aCenters = a_aCenters.clone();
+		Arrays.sort(aCenters);
+		double[] aMzs = a_peaks[0];
+		double[] aIntensities = a_peaks[1];
+		double[] aCroppedMzs = new double[aMzs.length];
+		double[] aCroppedIntensities = new double[aMzs.length];
+		int nCropped = 0;
+		int iCenter = 0;
+		for ( int i = 0; i < aMzs.length && iCenter < aCenters.length; i++ ) {
+			// Skips the windows below the peak, which are below the next peaks too
+			while ( iCenter < aCenters.length && aCenters[iCenter] + this.m_dHalfWidth < aMzs[i] )
+				iCenter++;
+			if ( iCenter == aCenters.length || aCenters[iCenter] - this.m_dHalfWidth > aMzs[i] )
+				continue;
+			aCroppedMzs[nCropped] = aMzs[i];
+			aCroppedIntensities[nCropped] = aIntensities[i];
+			nCropped++;
+		}
+		return new double[][] { Arrays.copyOf(aCroppedMzs, nCropped), Arrays.copyOf(aCroppedIntensities, nCropped) };
+	}
+
+	private static ScanHeader copyHeader(ScanHeader a_header) {
+		ScanHeader header = new ScanHeader();
+		header.setNum(a_header.getNum());
+		header.setMsLevel(a_header.getMsLevel());
+		header.setPeaksCount(a_header.getPeaksCount());
+		header.setPolarity(a_header.getPolarity());
+		header.setScanType(a_header.getScanType());
+		header.setCentroided(a_header.getCentroided());
+		header.setDeisotoped(a_header.getDeisotoped());
+		header.setChargeDeconvoluted(a_header.getChargeDeconvoluted());
+		header.setRetentionTime(a_header.getRetentionTime());
+		header.setRT(a_header.getRT());
+		header.setStartMz(a_header.getStartMz());
+		header.setEndMz(a_header.getEndMz());
+		header.setLowMz(a_header.getLowMz());
+		header.setHighMz(a_header.getHighMz());
+		header.setBasePeakMz(a_header.getBasePeakMz());
+		header.setBasePeakIntensity(a_header.getBasePeakIntensity());
+		header.setTotIonCurrent(a_header.getTotIonCurrent());
+		header.setPrecursorMz(a_header.getPrecursorMz());
+		header.setPrecursorScanNum(a_header.getPrecursorScanNum());
+		header.setPrecursorCharge(a_header.getPrecursorCharge());
+		header.setPrecursorIntensity(a_header.getPrecursorIntensity());
+		header.setCollisionEnergy(a_header.getCollisionEnergy());
+		header.setActivationMethod(a_header.getActivationMethod());
+		header.setIonisationEnergy(a_header.getIonisationEnergy());
+		header.setPrecision(a_header.getPrecision());
+		header.setFilterLine(a_header.getFilterLine());
+		header.setByteOrder(a_header.getByteOrder());
+		header.setContentType(a_header.getContentType());
+		header.setCompressionType(a_header.getCompressionType());
+		header.setCompressedLen(a_header.getCompressedLen());
+		header.setMassPrecision(a_header.getMassPrecision());
+		header.setMassCompressionType(a_header.getMassCompressionType());
+		header.setMassCompressedLen(a_header.getMassCompressedLen());
+		header.setIntenPrecision(a_header.getIntenPrecision());
+		header.setIntenCompressionType(a_header.getIntenCompressionType());
+		header.setIntenCompressedLen(a_header.getIntenCompressedLen());
+		header.setScanOffset(a_header.getScanOffset());
+		return header;
+	}
+}
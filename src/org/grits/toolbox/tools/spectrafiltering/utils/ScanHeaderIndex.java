@@ -0,0 +1,291 @@
+package org.grits.toolbox.tools.spectrafiltering.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.grits.toolbox.tools.spectrafiltering.om.ScanHeaderTable;
+import org.grits.toolbox.tools.spectrafiltering.om.SpectraFilterSettings;
+
+/**
+ * Binary sidecar index of an mzXML file, which stores the ScanHeaderTable.
+ * The index is saved next to the mzXML file with {@link #EXTENSION}, and is
+ * keyed by the size, the last modified time and a hash of the contents sampled
+ * from the mzXML file. A stale index is ignored on loading, so that it is
+ * rebuilt by the caller.
+ * <p>
+ * The offsets of the scans are not stored, since MSXMLParser reads the index
+ * of the mzXML file when it is created and cannot take the offsets from outside.
+ */
+public class ScanHeaderIndex {
+
+	/** Extension appended to the name of the mzXML file */
+	public static final String EXTENSION = ".hdrx";
+
+	private static final int MAGIC = 0x48445258; // "HDRX"
+	private static final int VERSION = 3;
+
+	/** Number and size of blocks sampled to hash the contents */
+	private static final int HASH_SAMPLES = 16;
+	private static final int HASH_BLOCK_SIZE = 4096;
+	private static final int HASH_LENGTH = 20;
+
+	private ScanHeaderTable m_headers;
+
+	/**
+	 * Constructor.
+	 * @param a_headers ScanHeaderTable of the scans
+	 */
+	public ScanHeaderIndex(ScanHeaderTable a_headers) {
+		this.m_headers = a_headers;
+	}
+
+	public ScanHeaderTable getHeaders() {
+		return this.m_headers;
+	}
+
+	/**
+	 * Returns the file of the index for the given mzXML file.
+	 * @param a_strMzXMLFile path of the mzXML file
+	 * @return File of the index
+	 */
+	public static File getIndexFile(String a_strMzXMLFile) {
+		return new File(a_strMzXMLFile + EXTENSION);
+	}
+
+	/**
+	 * Loads the scan headers of the input file from the index if the index is
+	 * enabled by the settings and up to date.
+	 * @param a_settings SpectraFilterSettings with the input file
+	 * @return ScanHeaderTable or {@code null} if the headers need to be read
+	 */
+	public static ScanHeaderTable loadIfEnabled(SpectraFilterSettings a_settings) {
+		if ( a_settings.getUseHeaderIndex() == null || !a_settings.getUseHeaderIndex() )
+			return null;
+		try {
+			ScanHeaderIndex index = load(a_settings.getOpenFrom());
+			if ( index != null )
+				return index.getHeaders();
+		} catch (IOException e) {
+			System.err.println("Cannot read the header index of " + a_settings.getOpenFrom() + ": " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Saves the scan headers of the input file into the index if the index is
+	 * enabled by the settings. Failure of saving is reported but not thrown,
+	 * since the index is only a cache and the headers are read again next time.
+	 * @param a_settings SpectraFilterSettings with the input file
+	 * @param a_headers ScanHeaderTable of the input file
+	 */
+	public static void saveIfEnabled(SpectraFilterSettings a_settings, ScanHeaderTable a_headers) {
+		if ( a_settings.getUseHeaderIndex() == null || !a_settings.getUseHeaderIndex() )
+			return;
+		try {
+			new ScanHeaderIndex(a_headers).save(a_settings.getOpenFrom());
+		} catch (IOException e) {
+			System.err.println("Cannot save the header index of " + a_settings.getOpenFrom() + ": " + e);
+		}
+	}
+
+	/**
+	 * Loads the index of the given mzXML file. The index file is read into the
+	 * heap rather than memory-mapped, so that the file is not held open by a
+	 * mapping and a stale index can be replaced by {@link #save(String)}.
+	 * @param a_strMzXMLFile path of the mzXML file
+	 * @return ScanHeaderIndex, or {@code null} if no index exists or the index is
+	 *         stale or broken
+	 * @throws IOException if the files cannot be read
+	 */
+	public static ScanHeaderIndex load(String a_strMzXMLFile) throws IOException {
+		File fileIndex = getIndexFile(a_strMzXMLFile);
+		if ( !fileIndex.isFile() )
+			return null;
+		File file = new File(a_strMzXMLFile);
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(fileIndex.toPath()));
+		try {
+			if ( buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+				return null;
+			if ( buffer.getLong() != file.length() || buffer.getLong() != file.lastModified() )
+				return null;
+			byte[] hash = new byte[HASH_LENGTH];
+			buffer.get(hash);
+			if ( !Arrays.equals(hash, computeContentHash(file)) )
+				return null;
+
+			int nRows = buffer.getInt();
+			int nMethods = buffer.getInt();
+			List<String> lActivationMethods = new ArrayList<>();
+			for ( int i = 0; i < nMethods; i++ ) {
+				int nLength = buffer.getInt();
+				if ( nLength < 0 ) {
+					lActivationMethods.add(null);
+					continue;
+				}
+				byte[] bytes = new byte[nLength];
+				buffer.get(bytes);
+				lActivationMethods.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+
+			int[] aScanNums = new int[nRows];
+			int[] aPrecursorScanNums = new int[nRows];
+			int[] aPrecursorCharges = new int[nRows];
+			int[] aPeaksCounts = new int[nRows];
+			int[] aActivationCodes = new int[nRows];
+			double[] aPrecursorMzs = new double[nRows];
+			double[] aRetentionTimes = new double[nRows];
+			byte[] aMsLevels = new byte[nRows];
+			float[] aLowMzs = new float[nRows];
+			float[] aHighMzs = new float[nRows];
+			float[] aBasePeakIntensities = new float[nRows];
+			getInts(buffer, aScanNums);
+			getInts(buffer, aPrecursorScanNums);
+			getInts(buffer, aPrecursorCharges);
+			getInts(buffer, aPeaksCounts);
+			getInts(buffer, aActivationCodes);
+			getDoubles(buffer, aPrecursorMzs);
+			getDoubles(buffer, aRetentionTimes);
+			buffer.get(aMsLevels);
+			getFloats(buffer, aLowMzs);
+			getFloats(buffer, aHighMzs);
+			getFloats(buffer, aBasePeakIntensities);
+			if ( buffer.hasRemaining() )
+				return null;
+			for ( int i = 0; i < nRows; i++ ) {
+				if ( aActivationCodes[i] < 0 || aActivationCodes[i] >= nMethods )
+					return null;
+			}
+
+			ScanHeaderTable headers = new ScanHeaderTable(nRows, aScanNums, aMsLevels, aPrecursorScanNums,
+					aPrecursorMzs, aPrecursorCharges, aPeaksCounts, aRetentionTimes, aActivationCodes,
+					lActivationMethods, aLowMzs, aHighMzs, aBasePeakIntensities);
+			return new ScanHeaderIndex(headers);
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+			// Broken index
+			return null;
+		}
+	}
+
+	private static void getInts(ByteBuffer a_buffer, int[] a_aValues) {
+		a_buffer.asIntBuffer().get(a_aValues);
+		a_buffer.position(a_buffer.position() + a_aValues.length * 4);
+	}
+
+	private static void getFloats(ByteBuffer a_buffer, float[] a_aValues) {
+		a_buffer.asFloatBuffer().get(a_aValues);
+		a_buffer.position(a_buffer.position() + a_aValues.length * 4);
+	}
+
+	private static void getDoubles(ByteBuffer a_buffer, double[] a_aValues) {
+		a_buffer.asDoubleBuffer().get(a_aValues);
+		a_buffer.position(a_buffer.position() + a_aValues.length * 8);
+	}
+
+	/**
+	 * Saves the index for the given mzXML file. The index is written into a
+	 * temporary file and moved to the index file, so that a broken index is not
+	 * left when the writing fails.
+	 * @param a_strMzXMLFile path of the mzXML file
+	 * @throws IOException if the index cannot be written
+	 */
+	public void save(String a_strMzXMLFile) throws IOException {
+		File file = new File(a_strMzXMLFile);
+		File fileIndex = getIndexFile(a_strMzXMLFile);
+		File fileTmp = new File(fileIndex.getPath() + ".tmp");
+
+		ScanHeaderTable headers = this.m_headers;
+		int nRows = headers.size();
+		try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileTmp))) ) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(file.length());
+			out.writeLong(file.lastModified());
+			out.write(computeContentHash(file));
+
+			out.writeInt(nRows);
+			List<String> lActivationMethods = headers.getActivationMethods();
+			out.writeInt(lActivationMethods.size());
+			for ( String strActivationMethod : lActivationMethods ) {
+				if ( strActivationMethod == null ) {
+					out.writeInt(-1);
+					continue;
+				}
+				byte[] bytes = strActivationMethod.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			for ( int i = 0; i < nRows; i++ )
+				out.writeInt(headers.getScanNum(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeInt(headers.getPrecursorScanNum(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeInt(headers.getPrecursorCharge(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeInt(headers.getPeaksCount(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeInt(headers.getActivationCode(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeDouble(headers.getPrecursorMz(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeDouble(headers.getRetentionTime(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeByte(headers.getMsLevel(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeFloat(headers.getLowMz(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeFloat(headers.getHighMz(i));
+			for ( int i = 0; i < nRows; i++ )
+				out.writeFloat(headers.getBasePeakIntensity(i));
+		} catch (IOException e) {
+			fileTmp.delete();
+			throw e;
+		}
+		Files.move(fileTmp.toPath(), fileIndex.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Computes SHA-1 hash of blocks sampled evenly from the file, including the
+	 * first and the last blocks. Hashing the whole file would take as long as
+	 * reading the headers.
+	 * @param a_file File to hash
+	 * @return byte[] of the hash
+	 * @throws IOException
+	 */
+	private static byte[] computeContentHash(File a_file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		try ( RandomAccessFile raf = new RandomAccessFile(a_file, "r") ) {
+			long lLength = raf.length();
+			byte[] block = new byte[HASH_BLOCK_SIZE];
+			long lLastBlock = Math.max(0L, lLength - HASH_BLOCK_SIZE);
+			for ( int i = 0; i < HASH_SAMPLES; i++ ) {
+				long lPosition = lLastBlock * i / (HASH_SAMPLES - 1);
+				raf.seek(lPosition);
+				int nRead = raf.read(block, 0, (int) Math.min(HASH_BLOCK_SIZE, lLength - lPosition));
+				if ( nRead > 0 )
+					digest.update(block, 0, nRead);
+			}
+		}
+		return digest.digest();
+	}
+}